@@ -107,6 +107,11 @@ if (cordova.platformId == "browser") {
             s();
         },
 
+        logEvents: function (events, s, f) {
+            // AppEvents are not avaliable in JS.
+            s();
+        },
+
         logout: function (s, f) {
             // Try will catch errors when SDK has not been init
             try {
@@ -122,8 +127,8 @@ if (cordova.platformId == "browser") {
             }
         },
 
-        api: function (graphPath, permissions, s, f) {
-            // JS API does not take additional permissions
+        api: function (graphPath, permissions, s, f, options) {
+            // JS API does not take additional permissions, and always returns a parsed response
             
             // Try will catch errors when SDK has not been init
             try {
@@ -143,6 +148,21 @@ if (cordova.platformId == "browser") {
             }
         },
 
+        cancel: function (requestId, s, f) {
+            // JS SDK calls can not be cancelled
+            s();
+        },
+
+        getGraphCacheStats: function (s, f) {
+            // JS SDK calls are not cached
+            s({});
+        },
+
+        getActionStats: function (s, f) {
+            // Nothing is dispatched natively
+            s({});
+        },
+
         // Browser wrapper API ONLY
         browserInit: function (appId, version) {
             if (!version) {
@@ -180,6 +200,9 @@ if (cordova.platformId == "browser") {
 
     var exec = require("cordova/exec");
 
+    // Identifies api() calls for cancel()
+    var nextRequestId = 1;
+
     var facebookConnectPlugin = {
 
         getLoginStatus: function (s, f) {
@@ -211,6 +234,36 @@ if (cordova.platformId == "browser") {
             exec(s, f, "FacebookConnectPlugin", "logPurchase", [value, currency]);
         },
 
+        logEvents: function(events, s, f) {
+            if (cordova.platformId == "android") {
+                // One bridge crossing for the lot
+                exec(s, f, "FacebookConnectPlugin", "logEvents", [events]);
+                return;
+            }
+            // Elsewhere, one logEvent per event, succeeding once all of them have
+            var remaining = events.length;
+            var failed = false;
+            if (remaining === 0) {
+                s();
+                return;
+            }
+            var done = function () {
+                remaining--;
+                if (remaining === 0 && !failed) {
+                    s();
+                }
+            };
+            var fail = function (error) {
+                if (!failed) {
+                    failed = true;
+                    f(error);
+                }
+            };
+            for (var i = 0; i < events.length; i++) {
+                facebookConnectPlugin.logEvent(events[i].name, events[i].params, events[i].valueToSum, done, fail);
+            }
+        },
+
         getAccessToken: function(s, f) {
             exec(s, f, "FacebookConnectPlugin", "getAccessToken", []);
         },
@@ -219,9 +272,38 @@ if (cordova.platformId == "browser") {
             exec(s, f, "FacebookConnectPlugin", "logout", []);
         },
 
-        api: function (graphPath, permissions, s, f) {
+        api: function (graphPath, permissions, s, f, options) {
             if (!permissions) { permissions = []; }
-            exec(s, f, "FacebookConnectPlugin", "graphApi", [graphPath, permissions]);
+            if (!options) { options = {}; }
+            var requestId = String(nextRequestId++);
+            var nativeOptions = {
+                responseType: options.responseType,
+                cache: options.cache,
+                maxAge: options.maxAge,
+                requestId: requestId,
+                progress: typeof options.onProgress === "function"
+            };
+            exec(function (result) {
+                // Progress updates arrive on the success callback ahead of the result
+                if (result && result._fbProgress) {
+                    options.onProgress(result.loaded, result.total);
+                } else {
+                    s(result);
+                }
+            }, f, "FacebookConnectPlugin", "graphApi", [graphPath, permissions, nativeOptions]);
+            return requestId;
+        },
+
+        cancel: function (requestId, s, f) {
+            exec(s, f, "FacebookConnectPlugin", "cancel", [requestId]);
+        },
+
+        getGraphCacheStats: function (s, f) {
+            exec(s, f, "FacebookConnectPlugin", "getGraphCacheStats", []);
+        },
+
+        getActionStats: function (s, f) {
+            exec(s, f, "FacebookConnectPlugin", "getActionStats", []);
         }
     };
 
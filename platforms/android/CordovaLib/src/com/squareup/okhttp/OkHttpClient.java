@@ -15,6 +15,7 @@
  */
 package com.squareup.okhttp;
 
+import com.squareup.okhttp.internal.Dns;
 import com.squareup.okhttp.internal.http.HttpURLConnectionImpl;
 import com.squareup.okhttp.internal.http.HttpsURLConnectionImpl;
 import com.squareup.okhttp.internal.http.OkResponseCache;
@@ -42,6 +43,7 @@ public final class OkHttpClient {
   private SSLSocketFactory sslSocketFactory;
   private HostnameVerifier hostnameVerifier;
   private ConnectionPool connectionPool;
+  private Dns dns;
   private boolean followProtocolRedirects = true;
 
   /**
@@ -164,6 +166,21 @@ public final class OkHttpClient {
     return connectionPool;
   }
 
+  /**
+   * Sets the domain name service used to look up the addresses of hosts, such
+   * as one that caches lookups.
+   *
+   * <p>If unset, {@link Dns#DEFAULT the platform resolver} will be used.
+   */
+  public OkHttpClient setDns(Dns dns) {
+    this.dns = dns;
+    return this;
+  }
+
+  public Dns getDns() {
+    return dns;
+  }
+
   /**
    * Configure this client to follow redirects from HTTPS to HTTP and from HTTP
    * to HTTPS.
@@ -210,6 +227,7 @@ public final class OkHttpClient {
         ? hostnameVerifier
         : HttpsURLConnection.getDefaultHostnameVerifier();
     result.connectionPool = connectionPool != null ? connectionPool : ConnectionPool.getDefault();
+    result.dns = dns != null ? dns : Dns.DEFAULT;
     result.followProtocolRedirects = followProtocolRedirects;
     return result;
   }
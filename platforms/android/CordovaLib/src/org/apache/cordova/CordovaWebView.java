@@ -340,6 +340,11 @@ public class CordovaWebView extends WebView {
 
         pluginManager = new PluginManager(this, this.cordova);
         jsMessageQueue = new NativeToJsMessageQueue(this, cordova);
+        try {
+            jsMessageQueue.setBatchWindow(Integer.parseInt(this.getProperty("NativeToJsBatchWindow", "0")));
+        } catch (NumberFormatException e) {
+            LOG.e(TAG, "Invalid NativeToJsBatchWindow preference");
+        }
         exposedJsApi = new ExposedJsApi(pluginManager, jsMessageQueue);
         resourceApi = new CordovaResourceApi(this.getContext(), pluginManager);
         exposeJsInterface();
@@ -1005,4 +1010,16 @@ public class CordovaWebView extends WebView {
     public CordovaResourceApi getResourceApi() {
         return resourceApi;
     }
+
+    /**
+     * Returns a snapshot of how many messages the bridge has sent to JavaScript,
+     * and how fast, since the bridge mode last changed or since resetBridgeStats().
+     */
+    public NativeToJsMessageQueue.Stats getBridgeStats() {
+        return jsMessageQueue.getStats();
+    }
+
+    public void resetBridgeStats() {
+        jsMessageQueue.resetStats();
+    }
 }
@@ -21,12 +21,19 @@ package org.apache.cordova;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.util.LinkedList;
+import java.util.Locale;
 
 import org.apache.cordova.CordovaInterface;
 import org.apache.cordova.PluginResult;
 
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
+import android.view.Choreographer;
 import android.webkit.WebView;
 
 /**
@@ -54,6 +61,31 @@ public class NativeToJsMessageQueue {
     // This currently only chops up on message boundaries. It may be useful
     // to allow it to break up messages.
     private static int MAX_PAYLOAD_SIZE = 50 * 1024 * 10240;
+
+    // Encode buffers that grew beyond this are not kept around for the next payload.
+    private static final int MAX_RETAINED_BUFFER_SIZE = 256 * 1024;
+    
+    /**
+     * How long, in milliseconds, to collect messages before telling the active
+     * listener about them. 0 tells it about every message right away.
+     */
+    private int batchWindow;
+    
+    /**
+     * Whether a delayed notification of the active listener is outstanding.
+     */
+    private boolean batchNotifyPending;
+    
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private Object frameCallback;
+    
+    /**
+     * Reused across payloads, so that a stream of results does not allocate
+     * and grow a new buffer every time.
+     */
+    private StringBuilder encodeBuffer = new StringBuilder();
+    
+    private final Stats stats = new Stats();
     
     /**
      * The index into registeredListeners to treat as active. 
@@ -101,6 +133,7 @@ public class NativeToJsMessageQueue {
                 Log.d(LOG_TAG, "Set native->JS mode to " + value);
                 synchronized (this) {
                     activeListenerIndex = value;
+                    stats.reset();
                     BridgeMode activeListener = registeredListeners[value];
                     if (!paused && !queue.isEmpty() && activeListener != null) {
                         activeListener.onNativeToJsMessageAvailable();
@@ -120,6 +153,43 @@ public class NativeToJsMessageQueue {
         }
     }
 
+    /**
+     * Sets how long, in milliseconds, messages are collected before the bridge
+     * is told about them, so that plugins sending many results in a row
+     * (paging, progress) cost one round trip to JS instead of one each. The
+     * batch is delivered on the first display frame after the window, where
+     * the platform supports it. 0, the default, disables batching.
+     */
+    public void setBatchWindow(int millis) {
+        if (millis < 0) {
+            Log.d(LOG_TAG, "Invalid NativeToJsBatchWindow: " + millis);
+            return;
+        }
+        synchronized (this) {
+            batchWindow = millis;
+        }
+    }
+
+    public int getBatchWindow() {
+        return batchWindow;
+    }
+
+    /**
+     * Returns a snapshot of the bridge throughput since the bridge mode was
+     * last changed, or since resetStats().
+     */
+    public Stats getStats() {
+        synchronized (this) {
+            return new Stats(stats);
+        }
+    }
+
+    public void resetStats() {
+        synchronized (this) {
+            stats.reset();
+        }
+    }
+
     private int calculatePackedMessageLength(JsMessage message) {
         int messageLen = message.calculateEncodedLength();
         String messageLenStr = String.valueOf(messageLen);
@@ -155,7 +225,8 @@ public class NativeToJsMessageQueue {
                 numMessagesToSend += 1;
             }
 
-            StringBuilder sb = new StringBuilder(totalPayloadLen);
+            long encodeStart = System.nanoTime();
+            StringBuilder sb = obtainEncodeBuffer(totalPayloadLen);
             for (int i = 0; i < numMessagesToSend; ++i) {
                 JsMessage message = queue.removeFirst();
                 packMessage(message, sb);
@@ -166,9 +237,24 @@ public class NativeToJsMessageQueue {
                 sb.append('*');
             }
             String ret = sb.toString();
+            releaseEncodeBuffer(sb);
+            stats.onPayloadSent(numMessagesToSend, ret.length(), System.nanoTime() - encodeStart);
             return ret;
         }
     }
+
+    private StringBuilder obtainEncodeBuffer(int capacity) {
+        StringBuilder sb = encodeBuffer;
+        sb.setLength(0);
+        sb.ensureCapacity(capacity);
+        return sb;
+    }
+
+    private void releaseEncodeBuffer(StringBuilder sb) {
+        if (sb.capacity() > MAX_RETAINED_BUFFER_SIZE) {
+            encodeBuffer = new StringBuilder();
+        }
+    }
     
     /**
      * Same as popAndEncode(), except encodes in a form that can be executed as JS.
@@ -190,7 +276,8 @@ public class NativeToJsMessageQueue {
                 numMessagesToSend += 1;
             }
             boolean willSendAllMessages = numMessagesToSend == queue.size();
-            StringBuilder sb = new StringBuilder(totalPayloadLen + (willSendAllMessages ? 0 : 100));
+            long encodeStart = System.nanoTime();
+            StringBuilder sb = obtainEncodeBuffer(totalPayloadLen + (willSendAllMessages ? 0 : 100));
             // Wrap each statement in a try/finally so that if one throws it does 
             // not affect the next.
             for (int i = 0; i < numMessagesToSend; ++i) {
@@ -210,6 +297,8 @@ public class NativeToJsMessageQueue {
                 sb.append('}');
             }
             String ret = sb.toString();
+            releaseEncodeBuffer(sb);
+            stats.onPayloadSent(numMessagesToSend, ret.length(), System.nanoTime() - encodeStart);
             return ret;
         }
     }   
@@ -249,11 +338,63 @@ public class NativeToJsMessageQueue {
     private void enqueueMessage(JsMessage message) {
         synchronized (this) {
             queue.add(message);
+            stats.messagesEnqueued++;
             if (!paused && registeredListeners[activeListenerIndex] != null) {
-                registeredListeners[activeListenerIndex].onNativeToJsMessageAvailable();
+                if (batchWindow > 0) {
+                    scheduleBatchNotify();
+                } else {
+                    notifyActiveListener();
+                }
             }
         }        
     }
+
+    private void notifyActiveListener() {
+        stats.listenerNotifications++;
+        registeredListeners[activeListenerIndex].onNativeToJsMessageAvailable();
+    }
+
+    // Must be called while synchronized. Messages enqueued while a notification
+    // is pending ride along with it.
+    private void scheduleBatchNotify() {
+        if (batchNotifyPending) {
+            return;
+        }
+        batchNotifyPending = true;
+        mainHandler.postDelayed(batchWindowElapsed, batchWindow);
+    }
+
+    private final Runnable batchWindowElapsed = new Runnable() {
+        public void run() {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+                postFrameCallback();
+            } else {
+                flushBatch();
+            }
+        }
+    };
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void postFrameCallback() {
+        if (frameCallback == null) {
+            frameCallback = new Choreographer.FrameCallback() {
+                public void doFrame(long frameTimeNanos) {
+                    flushBatch();
+                }
+            };
+        }
+        Choreographer.getInstance().postFrameCallback((Choreographer.FrameCallback) frameCallback);
+    }
+
+    private void flushBatch() {
+        synchronized (this) {
+            batchNotifyPending = false;
+            // setPaused(false) takes care of messages enqueued while paused.
+            if (!paused && !queue.isEmpty() && registeredListeners[activeListenerIndex] != null) {
+                notifyActiveListener();
+            }
+        }
+    }
     
     public void setPaused(boolean value) {
         if (paused && value) {
@@ -275,6 +416,98 @@ public class NativeToJsMessageQueue {
         return paused;
     }
 
+    /**
+     * Throughput of the native->JS bridge, for comparing bridge modes and
+     * batch windows.
+     */
+    public static class Stats {
+        private long startTime;
+        private long messagesEnqueued;
+        private long messagesSent;
+        private long payloadsSent;
+        private long charsSent;
+        private long encodeNanos;
+        private long listenerNotifications;
+
+        Stats() {
+            reset();
+        }
+
+        Stats(Stats other) {
+            startTime = other.startTime;
+            messagesEnqueued = other.messagesEnqueued;
+            messagesSent = other.messagesSent;
+            payloadsSent = other.payloadsSent;
+            charsSent = other.charsSent;
+            encodeNanos = other.encodeNanos;
+            listenerNotifications = other.listenerNotifications;
+        }
+
+        void reset() {
+            startTime = SystemClock.elapsedRealtime();
+            messagesEnqueued = 0;
+            messagesSent = 0;
+            payloadsSent = 0;
+            charsSent = 0;
+            encodeNanos = 0;
+            listenerNotifications = 0;
+        }
+
+        void onPayloadSent(int numMessages, int numChars, long nanos) {
+            messagesSent += numMessages;
+            payloadsSent++;
+            charsSent += numChars;
+            encodeNanos += nanos;
+        }
+
+        public long getMessagesEnqueued() {
+            return messagesEnqueued;
+        }
+
+        public long getMessagesSent() {
+            return messagesSent;
+        }
+
+        /** Number of payloads the messages were sent in. */
+        public long getPayloadsSent() {
+            return payloadsSent;
+        }
+
+        /** Number of times the bridge was told that messages were available. */
+        public long getListenerNotifications() {
+            return listenerNotifications;
+        }
+
+        /** Payload size in chars; Java and JS strings are UTF-16. */
+        public long getCharsSent() {
+            return charsSent;
+        }
+
+        public double getMessagesPerSecond() {
+            return perSecond(messagesSent);
+        }
+
+        public double getBytesPerSecond() {
+            return perSecond(charsSent * 2);
+        }
+
+        public double getAverageEncodeMicros() {
+            return payloadsSent == 0 ? 0 : encodeNanos / 1000.0 / payloadsSent;
+        }
+
+        private double perSecond(long count) {
+            long elapsed = SystemClock.elapsedRealtime() - startTime;
+            return elapsed <= 0 ? 0 : count * 1000.0 / elapsed;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%d/%d messages in %d payloads (%d notifications), %.1f msg/s, %.1f bytes/s, %.1f us/encode",
+                    messagesSent, messagesEnqueued, payloadsSent, listenerNotifications,
+                    getMessagesPerSecond(), getBytesPerSecond(), getAverageEncodeMicros());
+        }
+    }
+
     private abstract class BridgeMode {
         abstract void onNativeToJsMessageAvailable();
         void notifyOfFlush(boolean fromOnlineEvent) {}
@@ -20,7 +20,10 @@ package org.apache.cordova;
 
 import java.net.MalformedURLException;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -30,9 +33,16 @@ import android.net.Uri;
 
 public class Whitelist {
     private static class URLPattern {
-        public Pattern scheme;
-        public Pattern host;
+        // Each part is null when it matches anything
+        public String scheme;
+        // With subdomains, the domain the host has to be or end in
+        public String host;
+        public boolean subdomains;
         public Integer port;
+        // The path up to its first wildcard, and whether that wildcard ends the path
+        public String pathPrefix;
+        public boolean pathIsPrefix;
+        // Only for paths with wildcards before their end
         public Pattern path;
 
         private String regexFromPattern(String pattern, boolean allowWildcards) {
@@ -55,14 +65,15 @@ public class Whitelist {
                 if (scheme == null || "*".equals(scheme)) {
                     this.scheme = null;
                 } else {
-                    this.scheme = Pattern.compile(regexFromPattern(scheme, false));
+                    this.scheme = scheme;
                 }
                 if ("*".equals(host)) {
                     this.host = null;
                 } else if (host.startsWith("*.")) {
-                    this.host = Pattern.compile("([a-z0-9.-]*\\.)?" + regexFromPattern(host.substring(2), false));
+                    this.host = host.substring(2);
+                    this.subdomains = true;
                 } else {
-                    this.host = Pattern.compile(regexFromPattern(host, false));
+                    this.host = host;
                 }
                 if (port == null || "*".equals(port)) {
                     this.port = null;
@@ -70,21 +81,58 @@ public class Whitelist {
                     this.port = Integer.parseInt(port,10);
                 }
                 if (path == null || "/*".equals(path)) {
-                    this.path = null;
+                    this.pathPrefix = null;
                 } else {
-                    this.path = Pattern.compile(regexFromPattern(path, true));
+                    int wildcard = path.indexOf('*');
+                    if (wildcard < 0) {
+                        this.pathPrefix = path;
+                    } else if (wildcard == path.length() - 1) {
+                        this.pathPrefix = path.substring(0, wildcard);
+                        this.pathIsPrefix = true;
+                    } else {
+                        this.path = Pattern.compile(regexFromPattern(path, true));
+                    }
                 }
             } catch (NumberFormatException e) {
                 throw new MalformedURLException("Port must be a number");
             }
         }
 
-        public boolean matches(Uri uri) {
+        // Whether the host, known to be or to end in this.host, matches
+        private boolean matchesHost(String uriHost) {
+            if (host == null || uriHost.length() == host.length()) {
+                return true;
+            }
+            if (!subdomains || uriHost.charAt(uriHost.length() - host.length() - 1) != '.') {
+                return false;
+            }
+            // Subdomains are limited to what the regular expression this replaces allowed
+            for (int i = 0; i < uriHost.length() - host.length() - 1; i++) {
+                char c = uriHost.charAt(i);
+                if (!((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '.' || c == '-')) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean matchesPath(String uriPath) {
+            if (path != null) {
+                return path.matcher(uriPath).matches();
+            } else if (pathPrefix == null) {
+                return true;
+            } else if (pathIsPrefix) {
+                return uriPath.startsWith(pathPrefix);
+            }
+            return uriPath.equals(pathPrefix);
+        }
+
+        public boolean matches(Uri uri, String uriHost) {
             try {
-                return ((scheme == null || scheme.matcher(uri.getScheme()).matches()) &&
-                        (host == null || host.matcher(uri.getHost()).matches()) &&
+                return ((scheme == null || scheme.equals(uri.getScheme())) &&
+                        matchesHost(uriHost) &&
                         (port == null || port.equals(uri.getPort())) &&
-                        (path == null || path.matcher(uri.getPath()).matches()));
+                        (path == null && pathPrefix == null || matchesPath(uri.getPath())));
             } catch (Exception e) {
                 LOG.d(TAG, e.toString());
                 return false;
@@ -92,7 +140,22 @@ public class Whitelist {
         }
     }
 
+    private static final Pattern ORIGIN_PARTS = Pattern.compile("^((\\*|[a-z-]+)://)?(\\*|((\\*\\.)?[^*/:]+))?(:(\\d+))?(/.*)?");
+    // Recent decisions, as pages tend to load many resources from the same few URLs
+    private static final int MAX_CACHED_DECISIONS = 128;
+    // Longer URLs, such as data URLs, are not worth keeping around
+    private static final int MAX_CACHED_URL_LENGTH = 1024;
+
     private ArrayList<URLPattern> whiteList;
+    // The patterns by the host they apply to, and those that apply to any host
+    private final Map<String, List<URLPattern>> patternsByHost = new HashMap<String, List<URLPattern>>();
+    private final List<URLPattern> anyHostPatterns = new ArrayList<URLPattern>();
+    private final Map<String, Boolean> recentDecisions = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > MAX_CACHED_DECISIONS;
+        }
+    };
 
     public static final String TAG = "Whitelist";
 
@@ -111,17 +174,19 @@ public class Whitelist {
      * the scheme to be omitted for backwards compatibility. (Also host is not required
      * to begin with a "*" or "*.".)
      */
-    public void addWhiteListEntry(String origin, boolean subdomains) {
+    public synchronized void addWhiteListEntry(String origin, boolean subdomains) {
+        recentDecisions.clear();
         if (whiteList != null) {
             try {
                 // Unlimited access to network resources
                 if (origin.compareTo("*") == 0) {
                     LOG.d(TAG, "Unlimited access to network resources");
                     whiteList = null;
+                    patternsByHost.clear();
+                    anyHostPatterns.clear();
                 }
                 else { // specific access
-                    Pattern parts = Pattern.compile("^((\\*|[a-z-]+)://)?(\\*|((\\*\\.)?[^*/:]+))?(:(\\d+))?(/.*)?");
-                    Matcher m = parts.matcher(origin);
+                    Matcher m = ORIGIN_PARTS.matcher(origin);
                     if (m.matches()) {
                         String scheme = m.group(2);
                         String host = m.group(3);
@@ -131,10 +196,10 @@ public class Whitelist {
                         String path = m.group(8);
                         if (scheme == null) {
                             // XXX making it stupid friendly for people who forget to include protocol/SSL
-                            whiteList.add(new URLPattern("http", host, port, path));
-                            whiteList.add(new URLPattern("https", host, port, path));
+                            addPattern(new URLPattern("http", host, port, path));
+                            addPattern(new URLPattern("https", host, port, path));
                         } else {
-                            whiteList.add(new URLPattern(scheme, host, port, path));
+                            addPattern(new URLPattern(scheme, host, port, path));
                         }
                     }
                 }
@@ -151,20 +216,66 @@ public class Whitelist {
      * @param uri
      * @return true if wide open or whitelisted
      */
-    public boolean isUrlWhiteListed(String uri) {
+    public synchronized boolean isUrlWhiteListed(String uri) {
         // If there is no whitelist, then it's wide open
         if (whiteList == null) return true;
 
-        Uri parsedUri = Uri.parse(uri);
-        // Look for match in white list
-        Iterator<URLPattern> pit = whiteList.iterator();
-        while (pit.hasNext()) {
-            URLPattern p = pit.next();
-            if (p.matches(parsedUri)) {
+        Boolean decision = recentDecisions.get(uri);
+        if (decision == null) {
+            decision = matchesWhiteList(Uri.parse(uri));
+            if (uri.length() <= MAX_CACHED_URL_LENGTH) {
+                recentDecisions.put(uri, decision);
+            }
+        }
+        return decision;
+    }
+
+    private void addPattern(URLPattern pattern) {
+        whiteList.add(pattern);
+        if (pattern.host == null) {
+            anyHostPatterns.add(pattern);
+        } else {
+            List<URLPattern> patterns = patternsByHost.get(pattern.host);
+            if (patterns == null) {
+                patterns = new ArrayList<URLPattern>();
+                patternsByHost.put(pattern.host, patterns);
+            }
+            patterns.add(pattern);
+        }
+    }
+
+    /*
+     * Only checks the patterns for the host of the URL and the domains it is in, rather than every pattern
+     */
+    private boolean matchesWhiteList(Uri uri) {
+        String host = uri.getHost();
+        if (matchesAny(anyHostPatterns, uri, host)) {
+            return true;
+        }
+        if (host == null) {
+            return false;
+        }
+        if (matchesAny(patternsByHost.get(host), uri, host)) {
+            return true;
+        }
+        for (int dot = host.indexOf('.'); dot >= 0; dot = host.indexOf('.', dot + 1)) {
+            // Only patterns with subdomains match here
+            if (matchesAny(patternsByHost.get(host.substring(dot + 1)), uri, host)) {
                 return true;
             }
         }
         return false;
     }
 
+    private static boolean matchesAny(List<URLPattern> patterns, Uri uri, String host) {
+        if (patterns != null) {
+            for (URLPattern p : patterns) {
+                if (p.matches(uri, host)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
 }
@@ -0,0 +1,142 @@
+/**
+ * Copyright 2010-present Facebook.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook;
+
+import android.Manifest;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
+import android.os.SystemClock;
+
+// Decides when AppEventsLogger should flush, so that a steady stream of events does not wake the radio on a fixed
+// timer. Instead of every FLUSH_PERIOD, a flush is scheduled once there are events to send, and happens:
+// - once enough bytes are waiting to fill a batch,
+// - after a delay that grows on metered networks and low battery,
+// - right after other Graph traffic, while the radio is still up anyway,
+// and is pushed back exponentially after failed flushes.
+//
+// This class is thread-safe.
+final class AppEventsFlushScheduler {
+    // Flush once this many bytes of events are waiting, rather than after a number of events
+    static final int FLUSH_THRESHOLD_BYTES = 32 * 1024;
+    // Upper bound on the events sent by one request; whatever does not fit goes with the next one
+    static final int MAX_REQUEST_BYTES = 64 * 1024;
+
+    private static final long UNMETERED_FLUSH_DELAY_MILLIS = 15 * 1000;
+    private static final long METERED_FLUSH_DELAY_MILLIS = 60 * 1000;
+    private static final int LOW_BATTERY_DELAY_MULTIPLIER = 4;
+    private static final int LOW_BATTERY_PERCENT = 15;
+
+    private static final long MIN_BACKOFF_MILLIS = 30 * 1000;
+    private static final long MAX_BACKOFF_MILLIS = 30 * 60 * 1000;
+
+    // Piggybacking on other traffic is cheap, but not free
+    private static final long MIN_PIGGYBACK_INTERVAL_MILLIS = 5 * 1000;
+
+    private int consecutiveFailures;
+    private boolean lastFailureWasConnectivity;
+    private long backoffUntilMillis;
+    private long lastFlushMillis;
+
+    synchronized void onFlushStarted() {
+        lastFlushMillis = SystemClock.elapsedRealtime();
+    }
+
+    synchronized void onFlushSucceeded() {
+        consecutiveFailures = 0;
+        backoffUntilMillis = 0;
+    }
+
+    synchronized void onFlushFailed(boolean isConnectivityFailure) {
+        consecutiveFailures++;
+        lastFailureWasConnectivity = isConnectivityFailure;
+
+        long backoff = MIN_BACKOFF_MILLIS << Math.min(consecutiveFailures - 1, 16);
+        backoffUntilMillis = SystemClock.elapsedRealtime() + Math.min(backoff, MAX_BACKOFF_MILLIS);
+    }
+
+    synchronized boolean isBackingOff() {
+        return SystemClock.elapsedRealtime() < backoffUntilMillis;
+    }
+
+    synchronized int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    // Other Graph traffic just succeeded, so a connectivity backoff no longer applies, but a server error one does.
+    synchronized boolean shouldPiggyback() {
+        if (isBackingOff() && !lastFailureWasConnectivity) {
+            return false;
+        }
+        return SystemClock.elapsedRealtime() - lastFlushMillis >= MIN_PIGGYBACK_INTERVAL_MILLIS;
+    }
+
+    // How long to wait before a timed flush of the events accumulated so far
+    long getFlushDelayMillis(Context context) {
+        long delay = isOnUnmeteredNetwork(context) ? UNMETERED_FLUSH_DELAY_MILLIS : METERED_FLUSH_DELAY_MILLIS;
+        if (isBatteryLow(context)) {
+            delay *= LOW_BATTERY_DELAY_MULTIPLIER;
+        }
+
+        synchronized (this) {
+            long remainingBackoff = backoffUntilMillis - SystemClock.elapsedRealtime();
+            return Math.max(delay, remainingBackoff);
+        }
+    }
+
+    private static boolean isOnUnmeteredNetwork(Context context) {
+        if (context == null || context.checkCallingOrSelfPermission(Manifest.permission.ACCESS_NETWORK_STATE)
+                != PackageManager.PERMISSION_GRANTED) {
+            // Can't tell, so assume the radio
+            return false;
+        }
+
+        ConnectivityManager connectivityManager =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo networkInfo = connectivityManager != null ? connectivityManager.getActiveNetworkInfo() : null;
+        if (networkInfo == null) {
+            return false;
+        }
+        int type = networkInfo.getType();
+        return type == ConnectivityManager.TYPE_WIFI || type == ConnectivityManager.TYPE_ETHERNET;
+    }
+
+    private static boolean isBatteryLow(Context context) {
+        if (context == null) {
+            return false;
+        }
+
+        // ACTION_BATTERY_CHANGED is sticky, so this returns the last broadcast without registering anything.
+        Intent battery;
+        try {
+            battery = context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        } catch (RuntimeException e) {
+            return false;
+        }
+        if (battery == null || battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0) {
+            return false;
+        }
+
+        int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+        return level >= 0 && scale > 0 && level * 100 / scale < LOW_BATTERY_PERCENT;
+    }
+}
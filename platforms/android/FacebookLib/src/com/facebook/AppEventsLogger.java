@@ -35,9 +35,18 @@ import org.json.JSONObject;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
 import java.io.Serializable;
 import java.io.UnsupportedEncodingException;
 import java.math.BigDecimal;
@@ -49,8 +58,10 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
 
 
 /**
@@ -132,8 +143,9 @@ public class AppEventsLogger {
      */
     public enum FlushBehavior {
         /**
-         * Flush automatically: periodically (once a minute or after every 100 events), and always at app reactivation.
-         * This is the default value.
+         * Flush automatically: once enough events are waiting, after a delay that is longer on metered networks and
+         * low battery, alongside other Graph traffic, and always at app reactivation. Failed flushes back off
+         * exponentially. This is the default value.
          */
         AUTO,
 
@@ -143,11 +155,29 @@ public class AppEventsLogger {
         EXPLICIT_ONLY,
     }
 
+    /**
+     * An app event to log with {@link AppEventsLogger#logEvents(java.util.List)}.
+     */
+    public static final class Event {
+        private final String eventName;
+        private final Double valueToSum;
+        private final Bundle parameters;
+
+        /**
+         * @param eventName  the name of the event, see {@link AppEventsLogger#logEvent(String)}
+         * @param valueToSum a value to sum up across instances of the event, or null
+         * @param parameters the parameters of the event, or null, see {@link AppEventsLogger#logEvent(String, Bundle)}
+         */
+        public Event(String eventName, Double valueToSum, Bundle parameters) {
+            this.eventName = eventName;
+            this.valueToSum = valueToSum;
+            this.parameters = parameters;
+        }
+    }
+
     // Constants
     private static final String TAG = AppEventsLogger.class.getCanonicalName();
 
-    private static final int NUM_LOG_EVENTS_TO_TRY_TO_FLUSH_AFTER = 100;
-    private static final int FLUSH_PERIOD_IN_SECONDS = 15;
     private static final int APP_SUPPORTS_ATTRIBUTION_ID_RECHECK_PERIOD_IN_SECONDS = 60 * 60 * 24;
     private static final int FLUSH_APP_SESSION_INFO_IN_SECONDS = 30;
 
@@ -160,6 +190,10 @@ public class AppEventsLogger {
     private static Map<AccessTokenAppIdPair, SessionEventsState> stateMap =
             new ConcurrentHashMap<AccessTokenAppIdPair, SessionEventsState>();
     private static ScheduledThreadPoolExecutor backgroundExecutor;
+    private static ScheduledFuture<?> scheduledFlush;
+    private static final AppEventsFlushScheduler flushScheduler = new AppEventsFlushScheduler();
+    private static final int MIN_COMPRESSED_UPLOAD_BYTES = 1024;
+    private static volatile boolean compressedUploadsUnsupported;
     private static FlushBehavior flushBehavior = FlushBehavior.AUTO;
     private static boolean requestInFlight;
     private static Context applicationContext;
@@ -408,6 +442,27 @@ public class AppEventsLogger {
     public static final String APP_EVENTS_EXTRA_NUM_EVENTS_FLUSHED = "com.facebook.sdk.APP_EVENTS_NUM_EVENTS_FLUSHED";
     public static final String APP_EVENTS_EXTRA_FLUSH_RESULT = "com.facebook.sdk.APP_EVENTS_FLUSH_RESULT";
 
+    /**
+     * The size, in bytes, of the request bodies sent by the flush, before compression.
+     */
+    public static final String APP_EVENTS_EXTRA_NUM_BYTES_FLUSHED = "com.facebook.sdk.APP_EVENTS_NUM_BYTES_FLUSHED";
+
+    /**
+     * The number of bytes actually sent for the request bodies of the flush, after compression.
+     */
+    public static final String APP_EVENTS_EXTRA_NUM_BYTES_SENT = "com.facebook.sdk.APP_EVENTS_NUM_BYTES_SENT";
+
+    /**
+     * How long the flush took, in milliseconds.
+     */
+    public static final String APP_EVENTS_EXTRA_FLUSH_DURATION_MILLIS =
+            "com.facebook.sdk.APP_EVENTS_FLUSH_DURATION_MILLIS";
+
+    /**
+     * What triggered the flush, e.g. "TIMER" or "EVENT_THRESHOLD".
+     */
+    public static final String APP_EVENTS_EXTRA_FLUSH_REASON = "com.facebook.sdk.APP_EVENTS_FLUSH_REASON";
+
     /**
      * Access the behavior that AppEventsLogger uses to determine when to flush logged events to the server. This
      * setting applies to all instances of AppEventsLogger.
@@ -505,6 +560,27 @@ public class AppEventsLogger {
         logEvent(eventName, valueToSum, parameters, false);
     }
 
+    /**
+     * Log several app events at once. This is cheaper than calling logEvent for each of them when many events are
+     * logged together, as event names and parameter keys are validated once per call rather than once per event,
+     * and the events are added to those waiting to be sent in one go.
+     *
+     * @param events the events to log, in order
+     */
+    public void logEvents(List<Event> events) {
+        if (events == null || events.isEmpty()) {
+            return;
+        }
+
+        Set<String> validatedIdentifiers = new HashSet<String>();
+        List<AppEvent> appEvents = new ArrayList<AppEvent>(events.size());
+        for (Event event : events) {
+            appEvents.add(new AppEvent(this.context, event.eventName, event.valueToSum, event.parameters, false,
+                    validatedIdentifiers));
+        }
+        logEvents(context, appEvents, accessTokenAppId);
+    }
+
     /**
      * Logs a purchase event with Facebook, in the specified amount and with the specified currency.
      *
@@ -598,6 +674,7 @@ public class AppEventsLogger {
         PERSISTED_EVENTS,
         EVENT_THRESHOLD,
         EAGER_FLUSHING_EVENT,
+        GRAPH_TRAFFIC,
     }
 
     @SuppressWarnings("UnusedDeclaration")
@@ -655,21 +732,9 @@ public class AppEventsLogger {
             backgroundExecutor = new ScheduledThreadPoolExecutor(1);
         }
 
-        final Runnable flushRunnable = new Runnable() {
-            @Override
-            public void run() {
-                if (getFlushBehavior() != FlushBehavior.EXPLICIT_ONLY) {
-                    flushAndWait(FlushReason.TIMER);
-                }
-            }
-        };
-
-        backgroundExecutor.scheduleAtFixedRate(
-                flushRunnable,
-                0,
-                FLUSH_PERIOD_IN_SECONDS,
-                TimeUnit.SECONDS
-        );
+        // Send anything persisted by a previous run. Later timed flushes are only scheduled while there are
+        // events waiting, see scheduleFlushIfNeeded.
+        backgroundExecutor.schedule(timedFlushRunnable, 0, TimeUnit.SECONDS);
 
         final Runnable attributionRecheckRunnable = new Runnable() {
             @Override
@@ -699,6 +764,33 @@ public class AppEventsLogger {
         logEvent(context, event, accessTokenAppId);
     }
 
+    private static void logEvents(final Context context,
+                                  final List<AppEvent> events,
+                                  final AccessTokenAppIdPair accessTokenAppId) {
+        Settings.getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                SessionEventsState state = getSessionEventsState(context, accessTokenAppId);
+                int next = state.addEvents(events, 0);
+                while (next < events.size()) {
+                    // Spill to disk rather than drop events, as logEvent does
+                    PersistedEvents.persistEvents(applicationContext, accessTokenAppId, state);
+                    int added = state.addEvents(events, next);
+                    if (added == next) {
+                        // Full of events in flight; these are counted as skipped
+                        for (AppEvent event : events.subList(next, events.size())) {
+                            state.addEvent(event);
+                        }
+                        break;
+                    }
+                    next = added;
+                }
+                flushIfNecessary();
+                scheduleFlushIfNeeded();
+            }
+        });
+    }
+
     private static void logEvent(final Context context,
                                  final AppEvent event,
                                  final AccessTokenAppIdPair accessTokenAppId) {
@@ -706,12 +798,67 @@ public class AppEventsLogger {
             @Override
             public void run() {
                 SessionEventsState state = getSessionEventsState(context, accessTokenAppId);
+                if (state.isFull()) {
+                    // Spill to disk rather than drop events; they are picked up again by the next flush.
+                    PersistedEvents.persistEvents(applicationContext, accessTokenAppId, state);
+                }
                 state.addEvent(event);
                 flushIfNecessary();
+                scheduleFlushIfNeeded();
             }
         });
     }
 
+    private static final Runnable timedFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (staticLock) {
+                scheduledFlush = null;
+            }
+            if (getFlushBehavior() != FlushBehavior.EXPLICIT_ONLY) {
+                flushAndWait(FlushReason.TIMER);
+            }
+        }
+    };
+
+    // Schedules a timed flush if events are waiting and none is scheduled yet.
+    private static void scheduleFlushIfNeeded() {
+        if (getFlushBehavior() == FlushBehavior.EXPLICIT_ONLY) {
+            return;
+        }
+        synchronized (staticLock) {
+            if (backgroundExecutor == null || scheduledFlush != null || getAccumulatedEventCount() == 0) {
+                return;
+            }
+        }
+
+        long delay = flushScheduler.getFlushDelayMillis(applicationContext);
+        synchronized (staticLock) {
+            if (scheduledFlush == null) {
+                scheduledFlush = backgroundExecutor.schedule(timedFlushRunnable, delay, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Called after other Graph requests have completed, while the radio is likely still up, to send any waiting
+     * events along instead of waking the radio again later.
+     */
+    static void onGraphTrafficCompleted() {
+        if (applicationContext == null || getFlushBehavior() == FlushBehavior.EXPLICIT_ONLY) {
+            return;
+        }
+        synchronized (staticLock) {
+            // Our own flush requests come through here too
+            if (requestInFlight || getAccumulatedEventCount() == 0) {
+                return;
+            }
+        }
+        if (flushScheduler.shouldPiggyback()) {
+            flush(FlushReason.GRAPH_TRAFFIC);
+        }
+    }
+
     static void eagerFlush() {
         if (getFlushBehavior() != FlushBehavior.EXPLICIT_ONLY) {
             flush(FlushReason.EAGER_FLUSHING_EVENT);
@@ -720,8 +867,8 @@ public class AppEventsLogger {
 
     private static void flushIfNecessary() {
         synchronized (staticLock) {
-            if (getFlushBehavior() != FlushBehavior.EXPLICIT_ONLY) {
-                if (getAccumulatedEventCount() > NUM_LOG_EVENTS_TO_TRY_TO_FLUSH_AFTER) {
+            if (getFlushBehavior() != FlushBehavior.EXPLICIT_ONLY && !flushScheduler.isBackingOff()) {
+                if (getAccumulatedEventBytes() >= AppEventsFlushScheduler.FLUSH_THRESHOLD_BYTES) {
                     flush(FlushReason.EVENT_THRESHOLD);
                 }
             }
@@ -739,6 +886,16 @@ public class AppEventsLogger {
         }
     }
 
+    private static int getAccumulatedEventBytes() {
+        synchronized (staticLock) {
+            int result = 0;
+            for (SessionEventsState state : stateMap.values()) {
+                result += state.getAccumulatedEventBytes();
+            }
+            return result;
+        }
+    }
+
     // Creates a new SessionEventsState if not already in the map.
     private static SessionEventsState getSessionEventsState(Context context, AccessTokenAppIdPair accessTokenAppId) {
         // Do this work outside of the lock to prevent deadlocks in implementation of
@@ -791,6 +948,8 @@ public class AppEventsLogger {
 
         accumulatePersistedEvents();
 
+        long startMillis = System.currentTimeMillis();
+        flushScheduler.onFlushStarted();
         FlushStatistics flushResults = null;
         try {
             flushResults = buildAndExecuteRequests(reason, keysToFlush);
@@ -803,11 +962,31 @@ public class AppEventsLogger {
         }
 
         if (flushResults != null) {
+            long durationMillis = System.currentTimeMillis() - startMillis;
+            if (flushResults.result == FlushResult.SUCCESS) {
+                flushScheduler.onFlushSucceeded();
+            } else {
+                flushScheduler.onFlushFailed(flushResults.result == FlushResult.NO_CONNECTIVITY);
+            }
+
+            Logger.log(LoggingBehavior.APP_EVENTS, TAG,
+                    "Flushed %d events (%d bytes, %d sent) due to %s in %d ms: %s",
+                    flushResults.numEvents, flushResults.numBytes, flushResults.numBytesSent, reason.toString(),
+                    durationMillis, flushResults.result.toString());
+
             final Intent intent = new Intent(ACTION_APP_EVENTS_FLUSHED);
             intent.putExtra(APP_EVENTS_EXTRA_NUM_EVENTS_FLUSHED, flushResults.numEvents);
             intent.putExtra(APP_EVENTS_EXTRA_FLUSH_RESULT, flushResults.result);
+            intent.putExtra(APP_EVENTS_EXTRA_NUM_BYTES_FLUSHED, flushResults.numBytes);
+            intent.putExtra(APP_EVENTS_EXTRA_NUM_BYTES_SENT, flushResults.numBytesSent);
+            intent.putExtra(APP_EVENTS_EXTRA_FLUSH_DURATION_MILLIS, durationMillis);
+            intent.putExtra(APP_EVENTS_EXTRA_FLUSH_REASON, reason.toString());
             LocalBroadcastManager.getInstance(applicationContext).sendBroadcast(intent);
         }
+
+        // Whatever did not fit in this flush, or came in meanwhile
+        flushIfNecessary();
+        scheduleFlushIfNeeded();
     }
 
     private static FlushStatistics buildAndExecuteRequests(FlushReason reason, Set<AccessTokenAppIdPair> keysToFlush) {
@@ -837,7 +1016,10 @@ public class AppEventsLogger {
             for (Request request : requestsToExecute) {
                 // Execute the request synchronously. Callbacks will take care of handling errors and updating
                 // our final overall result.
-                request.executeAndWait();
+                RequestBatch batch = new RequestBatch(request);
+                batch.executeAndWait();
+                flushResults.numBytes += batch.getBodyLength();
+                flushResults.numBytesSent += batch.getSentBodyLength();
             }
             return flushResults;
         }
@@ -847,6 +1029,8 @@ public class AppEventsLogger {
 
     private static class FlushStatistics {
         public int numEvents = 0;
+        public long numBytes = 0;
+        public long numBytesSent = 0;
         public FlushResult result = FlushResult.SUCCESS;
     }
 
@@ -883,6 +1067,12 @@ public class AppEventsLogger {
 
         flushState.numEvents += numEvents;
 
+        // Batches of events are large and repetitive, so they shrink several times over when compressed
+        if (!compressedUploadsUnsupported
+                && sessionEventsState.getInFlightEventBytes() >= MIN_COMPRESSED_UPLOAD_BYTES) {
+            postRequest.setCompressBody(true);
+        }
+
         postRequest.setCallback(new Request.Callback() {
             @Override
             public void onCompleted(Response response) {
@@ -900,11 +1090,21 @@ public class AppEventsLogger {
 
         FlushResult flushResult = FlushResult.SUCCESS;
 
+        boolean retryEvents = false;
         if (error != null) {
             final int NO_CONNECTIVITY_ERROR_CODE = -1;
+            final int UNSUPPORTED_MEDIA_TYPE_STATUS_CODE = 415;
             if (error.getErrorCode() == NO_CONNECTIVITY_ERROR_CODE) {
                 resultDescription = "Failed: No Connectivity";
                 flushResult = FlushResult.NO_CONNECTIVITY;
+                retryEvents = true;
+            } else if (request.getCompressBody()
+                    && error.getRequestStatusCode() == UNSUPPORTED_MEDIA_TYPE_STATUS_CODE) {
+                // The server would not take a compressed body; the events themselves are fine, so send them
+                // again uncompressed. Not counted as a failure, since backing off would only hold up that retry.
+                resultDescription = "Compressed body not accepted, retrying uncompressed";
+                compressedUploadsUnsupported = true;
+                retryEvents = true;
             } else {
                 resultDescription = String.format("Failed:\n  Response: %s\n  Error %s",
                         response.toString(),
@@ -933,7 +1133,7 @@ public class AppEventsLogger {
 
         sessionEventsState.clearInFlightAndStats(error != null);
 
-        if (flushResult == FlushResult.NO_CONNECTIVITY) {
+        if (retryEvents) {
             // We may call this for multiple requests in a batch, which is slightly inefficient since in principle
             // we could call it once for all failed requests, but the impact is likely to be minimal.
             // We don't call this for other server errors, because if an event failed because it was malformed, etc.,
@@ -1051,6 +1251,7 @@ public class AppEventsLogger {
     static class SessionEventsState {
         private List<AppEvent> accumulatedEvents = new ArrayList<AppEvent>();
         private List<AppEvent> inFlightEvents = new ArrayList<AppEvent>();
+        private int accumulatedEventBytes;
         private int numSkippedEventsDueToFullBuffer;
         private AttributionIdentifiers attributionIdentifiers;
         private String packageName;
@@ -1071,20 +1272,51 @@ public class AppEventsLogger {
         // Synchronize here and in other methods on this class, because could be coming in from different
         // AppEventsLoggers on different threads pointing at the same session.
         public synchronized void addEvent(AppEvent event) {
-            if (accumulatedEvents.size() + inFlightEvents.size() >= MAX_ACCUMULATED_LOG_EVENTS) {
+            if (isFull()) {
                 numSkippedEventsDueToFullBuffer++;
             } else {
                 accumulatedEvents.add(event);
+                accumulatedEventBytes += event.getEncodedSize();
+            }
+        }
+
+        // Adds events from start on until the buffer is full, returning the index of the first one not added
+        public synchronized int addEvents(List<AppEvent> events, int start) {
+            int i = start;
+            for (; i < events.size() && !isFull(); i++) {
+                AppEvent event = events.get(i);
+                accumulatedEvents.add(event);
+                accumulatedEventBytes += event.getEncodedSize();
             }
+            return i;
+        }
+
+        public synchronized boolean isFull() {
+            return accumulatedEvents.size() + inFlightEvents.size() >= MAX_ACCUMULATED_LOG_EVENTS;
         }
 
         public synchronized int getAccumulatedEventCount() {
             return accumulatedEvents.size();
         }
 
+        public synchronized int getAccumulatedEventBytes() {
+            return accumulatedEventBytes;
+        }
+
+        public synchronized int getInFlightEventBytes() {
+            int result = 0;
+            for (AppEvent event : inFlightEvents) {
+                result += event.getEncodedSize();
+            }
+            return result;
+        }
+
         public synchronized void clearInFlightAndStats(boolean moveToAccumulated) {
             if (moveToAccumulated) {
                 accumulatedEvents.addAll(inFlightEvents);
+                for (AppEvent event : inFlightEvents) {
+                    accumulatedEventBytes += event.getEncodedSize();
+                }
             }
             inFlightEvents.clear();
             numSkippedEventsDueToFullBuffer = 0;
@@ -1098,9 +1330,20 @@ public class AppEventsLogger {
             synchronized (this) {
                 numSkipped = numSkippedEventsDueToFullBuffer;
 
-                // move all accumulated events to inFlight.
-                inFlightEvents.addAll(accumulatedEvents);
-                accumulatedEvents.clear();
+                // move accumulated events to inFlight, oldest first, up to the size of one request.
+                int requestBytes = 0;
+                int moveCount = 0;
+                for (AppEvent event : accumulatedEvents) {
+                    if (moveCount > 0 && requestBytes + event.getEncodedSize() > AppEventsFlushScheduler.MAX_REQUEST_BYTES) {
+                        break;
+                    }
+                    requestBytes += event.getEncodedSize();
+                    moveCount++;
+                }
+                List<AppEvent> eventsToMove = accumulatedEvents.subList(0, moveCount);
+                inFlightEvents.addAll(eventsToMove);
+                eventsToMove.clear();
+                accumulatedEventBytes -= requestBytes;
 
                 jsonArray = new JSONArray();
                 for (AppEvent event : inFlightEvents) {
@@ -1124,6 +1367,7 @@ public class AppEventsLogger {
             // while the flush is in progress.
             List<AppEvent> result = accumulatedEvents;
             accumulatedEvents = new ArrayList<AppEvent>();
+            accumulatedEventBytes = 0;
             return result;
         }
 
@@ -1131,6 +1375,9 @@ public class AppEventsLogger {
             // We won't skip events due to a full buffer, since we already accumulated them once and persisted
             // them. But they will count against the buffer size when further events are accumulated.
             accumulatedEvents.addAll(events);
+            for (AppEvent event : events) {
+                accumulatedEventBytes += event.getEncodedSize();
+            }
         }
 
         private void populateRequest(Request request, int numSkipped, JSONArray events, boolean includeAttribution,
@@ -1190,6 +1437,7 @@ public class AppEventsLogger {
 
         private JSONObject jsonObject;
         private boolean isImplicit;
+        private transient int encodedSize = -1;
         private static final HashSet<String> validatedIdentifiers = new HashSet<String>();
         private String name;
 
@@ -1199,9 +1447,22 @@ public class AppEventsLogger {
                 Double valueToSum,
                 Bundle parameters,
                 boolean isImplicitlyLogged
+        ) {
+            this(context, eventName, valueToSum, parameters, isImplicitlyLogged, null);
+        }
+
+        // validatedInBatch, if not null, holds identifiers already validated for events logged together, and saves
+        // taking the lock on validatedIdentifiers for each of them.
+        AppEvent(
+                Context context,
+                String eventName,
+                Double valueToSum,
+                Bundle parameters,
+                boolean isImplicitlyLogged,
+                Set<String> validatedInBatch
         ) {
             try {
-                validateIdentifier(eventName);
+                validateIdentifier(eventName, validatedInBatch);
 
                 this.name = eventName;
                 isImplicit = isImplicitlyLogged;
@@ -1227,7 +1488,7 @@ public class AppEventsLogger {
                 if (parameters != null) {
                     for (String key : parameters.keySet()) {
 
-                        validateIdentifier(key);
+                        validateIdentifier(key, validatedInBatch);
 
                         Object value = parameters.get(key);
                         if (!(value instanceof String) && !(value instanceof Number)) {
@@ -1279,8 +1540,19 @@ public class AppEventsLogger {
             return jsonObject;
         }
 
+        // Approximate size of the event in a request, computed once.
+        public int getEncodedSize() {
+            if (encodedSize < 0) {
+                encodedSize = jsonObject == null ? 0 : jsonObject.toString().length();
+            }
+            return encodedSize;
+        }
+
         // throw exception if not valid.
-        private void validateIdentifier(String identifier) throws FacebookException {
+        private void validateIdentifier(String identifier, Set<String> validatedInBatch) throws FacebookException {
+            if (validatedInBatch != null && validatedInBatch.contains(identifier)) {
+                return;
+            }
 
             // Identifier should be 40 chars or less, and only have 0-9A-Za-z, underscore, hyphen, and space (but no
             // hyphen or space in the first position).
@@ -1315,6 +1587,9 @@ public class AppEventsLogger {
                     );
                 }
             }
+            if (validatedInBatch != null) {
+                validatedInBatch.add(identifier);
+            }
         }
 
         private static class SerializationProxyV1 implements Serializable {
@@ -1476,10 +1751,31 @@ public class AppEventsLogger {
 
     // Read/write operations are thread-safe/atomic across all instances of PersistedEvents, but modifications
     // to any individual instance are not thread-safe.
+    //
+    // Events are persisted to an append-only log, so persisting only costs writing the new events, and reading
+    // back is one sequential scan. The log starts with LOG_MAGIC and LOG_VERSION, followed by one record per event:
+    //     int: payload length
+    //     int: CRC32 of the payload
+    //     payload: access token, application ID (each an int UTF-8 length, -1 for null, then the bytes),
+    //              boolean isImplicit, event JSON (int length, then UTF-8 bytes)
+    // A process killed in the middle of an append leaves a short or corrupt last record; reading stops at the
+    // first such record and keeps everything before it, and appending first cuts the log back to its last whole
+    // record so that new records are not written after it. Reading clears the log, which is all the compaction an
+    // append-only log of not-yet-sent events needs.
     static class PersistedEvents {
         static final String PERSISTED_EVENTS_FILENAME = "AppEventsLogger.persistedevents";
+        static final String PERSISTED_EVENTS_LOG_FILENAME = "AppEventsLogger.persistedeventslog";
+
+        private static final int LOG_MAGIC = 0x46424556; // "FBEV"
+        private static final int LOG_VERSION = 1;
+        private static final int LOG_HEADER_LENGTH = 8;
+        private static final int RECORD_HEADER_LENGTH = 8;
+        private static final int MAX_RECORD_LENGTH = 1024 * 1024;
 
         private static Object staticLock = new Object();
+        // Length of the log as this process last wrote it whole, so that appends only scan it after a crash
+        // or a failed write; -1 if unknown. Guarded by staticLock.
+        private static long verifiedLogLength = -1;
 
         private Context context;
         private HashMap<AccessTokenAppIdPair, List<AppEvent>> persistedEvents =
@@ -1493,6 +1789,7 @@ public class AppEventsLogger {
             synchronized (staticLock) {
                 PersistedEvents persistedEvents = new PersistedEvents(context);
 
+                persistedEvents.readAndClearLegacyStore();
                 persistedEvents.readAndClearStore();
 
                 return persistedEvents;
@@ -1513,7 +1810,7 @@ public class AppEventsLogger {
                 // SessionEventsState; when a particular Context is being destroyed, we'll persist all accumulated
                 // events. More sophisticated tracking could be done to try to reduce unnecessary persisting of events,
                 // but the overall number of events is not expected to be large.
-                PersistedEvents persistedEvents = readAndClearStore(context);
+                PersistedEvents persistedEvents = new PersistedEvents(context);
 
                 for (Map.Entry<AccessTokenAppIdPair, SessionEventsState> entry : eventsToPersist.entrySet()) {
                     List<AppEvent> events = entry.getValue().getEventsToPersist();
@@ -1524,7 +1821,9 @@ public class AppEventsLogger {
                     persistedEvents.addEvents(entry.getKey(), events);
                 }
 
-                persistedEvents.write();
+                if (!persistedEvents.persistedEvents.isEmpty()) {
+                    persistedEvents.append();
+                }
             }
         }
 
@@ -1536,20 +1835,177 @@ public class AppEventsLogger {
             return persistedEvents.get(accessTokenAppId);
         }
 
-        private void write() {
-            ObjectOutputStream oos = null;
+        private void append() {
+            DataOutputStream output = null;
             try {
-                oos = new ObjectOutputStream(
-                        new BufferedOutputStream(context.openFileOutput(PERSISTED_EVENTS_FILENAME, 0)));
-                oos.writeObject(persistedEvents);
+                File logFile = context.getFileStreamPath(PERSISTED_EVENTS_LOG_FILENAME);
+                boolean isNewLog = truncateToLastRecord(logFile) == 0;
+                output = new DataOutputStream(new BufferedOutputStream(
+                        context.openFileOutput(PERSISTED_EVENTS_LOG_FILENAME, Context.MODE_APPEND)));
+                if (isNewLog) {
+                    output.writeInt(LOG_MAGIC);
+                    output.writeInt(LOG_VERSION);
+                }
+
+                ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream();
+                DataOutputStream payload = new DataOutputStream(payloadBytes);
+                CRC32 crc = new CRC32();
+                for (Map.Entry<AccessTokenAppIdPair, List<AppEvent>> entry : persistedEvents.entrySet()) {
+                    AccessTokenAppIdPair accessTokenAppId = entry.getKey();
+                    for (AppEvent event : entry.getValue()) {
+                        if (event.getJSONObject() == null) {
+                            // Failed validation when it was logged, so there is nothing to send
+                            continue;
+                        }
+                        payloadBytes.reset();
+                        writeString(payload, accessTokenAppId.getAccessToken());
+                        writeString(payload, accessTokenAppId.getApplicationId());
+                        payload.writeBoolean(event.getIsImplicit());
+                        writeString(payload, event.getJSONObject().toString());
+                        payload.flush();
+
+                        byte[] record = payloadBytes.toByteArray();
+                        crc.reset();
+                        crc.update(record);
+                        output.writeInt(record.length);
+                        output.writeInt((int) crc.getValue());
+                        output.write(record);
+                    }
+                }
+                // Closed here rather than quietly, since a failure to flush leaves a partial record
+                output.close();
+                output = null;
+                verifiedLogLength = logFile.length();
             } catch (Exception e) {
                 Log.d(TAG, "Got unexpected exception: " + e.toString());
+                verifiedLogLength = -1;
             } finally {
-                Utility.closeQuietly(oos);
+                Utility.closeQuietly(output);
             }
         }
 
+        // Returns the length of the log up to the end of its last whole record, having cut off anything after
+        // it, or 0 if there is no log or its header is missing or partial, in which case the log is emptied.
+        private static long truncateToLastRecord(File logFile) throws IOException {
+            if (!logFile.exists()) {
+                return 0;
+            }
+            long length = logFile.length();
+            if (length == verifiedLogLength) {
+                return length;
+            }
+
+            long goodLength = 0;
+            DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile)));
+            try {
+                if (length >= LOG_HEADER_LENGTH && input.readInt() == LOG_MAGIC && input.readInt() == LOG_VERSION) {
+                    goodLength = LOG_HEADER_LENGTH;
+                    CRC32 crc = new CRC32();
+                    while (length - goodLength >= RECORD_HEADER_LENGTH) {
+                        int recordLength = input.readInt();
+                        int expectedCrc = input.readInt();
+                        if (recordLength < 0 || recordLength > MAX_RECORD_LENGTH
+                                || length - goodLength - RECORD_HEADER_LENGTH < recordLength) {
+                            break;
+                        }
+                        byte[] record = new byte[recordLength];
+                        input.readFully(record);
+                        crc.reset();
+                        crc.update(record);
+                        if ((int) crc.getValue() != expectedCrc) {
+                            break;
+                        }
+                        goodLength += RECORD_HEADER_LENGTH + recordLength;
+                    }
+                }
+            } finally {
+                Utility.closeQuietly(input);
+            }
+
+            if (goodLength < length) {
+                Log.d(TAG, "Truncating corrupt tail of persisted events");
+                RandomAccessFile log = new RandomAccessFile(logFile, "rw");
+                try {
+                    log.setLength(goodLength);
+                } finally {
+                    Utility.closeQuietly(log);
+                }
+            }
+            verifiedLogLength = goodLength;
+            return goodLength;
+        }
+
         private void readAndClearStore() {
+            DataInputStream input = null;
+            try {
+                input = new DataInputStream(new BufferedInputStream(
+                        context.openFileInput(PERSISTED_EVENTS_LOG_FILENAME)));
+
+                // Note: We delete the store before we store the events; this means we'd prefer to lose some
+                // events in the case of exception rather than potentially log them twice.
+                context.getFileStreamPath(PERSISTED_EVENTS_LOG_FILENAME).delete();
+                verifiedLogLength = -1;
+
+                if (input.readInt() != LOG_MAGIC || input.readInt() != LOG_VERSION) {
+                    return;
+                }
+
+                CRC32 crc = new CRC32();
+                while (true) {
+                    int length;
+                    try {
+                        length = input.readInt();
+                    } catch (EOFException e) {
+                        // Clean end of the log
+                        break;
+                    }
+                    int expectedCrc = input.readInt();
+                    if (length < 0 || length > MAX_RECORD_LENGTH) {
+                        Log.d(TAG, "Dropping corrupt tail of persisted events");
+                        break;
+                    }
+
+                    byte[] record = new byte[length];
+                    input.readFully(record);
+                    crc.reset();
+                    crc.update(record);
+                    if ((int) crc.getValue() != expectedCrc) {
+                        Log.d(TAG, "Dropping corrupt tail of persisted events");
+                        break;
+                    }
+
+                    readRecord(record);
+                }
+            } catch (FileNotFoundException e) {
+                // Expected if we never persisted any events.
+            } catch (EOFException e) {
+                // Truncated by a crash in the middle of an append; keep what was read so far.
+                Log.d(TAG, "Dropping truncated tail of persisted events");
+            } catch (Exception e) {
+                Log.d(TAG, "Got unexpected exception: " + e.toString());
+            } finally {
+                Utility.closeQuietly(input);
+            }
+        }
+
+        private void readRecord(byte[] record) throws IOException {
+            DataInputStream payload = new DataInputStream(new ByteArrayInputStream(record));
+            String accessToken = readString(payload);
+            String applicationId = readString(payload);
+            boolean isImplicit = payload.readBoolean();
+            String jsonString = readString(payload);
+
+            try {
+                List<AppEvent> events = new ArrayList<AppEvent>(1);
+                events.add(new AppEvent(jsonString, isImplicit));
+                addEvents(new AccessTokenAppIdPair(accessToken, applicationId), events);
+            } catch (JSONException e) {
+                Log.d(TAG, "Skipping unreadable persisted event: " + e.toString());
+            }
+        }
+
+        // Events persisted with Java serialization by earlier versions are read once more after an upgrade.
+        private void readAndClearLegacyStore() {
             ObjectInputStream ois = null;
             try {
                 ois = new ObjectInputStream(
@@ -1562,9 +2018,11 @@ public class AppEventsLogger {
                 // Note: We delete the store before we store the events; this means we'd prefer to lose some
                 // events in the case of exception rather than potentially log them twice.
                 context.getFileStreamPath(PERSISTED_EVENTS_FILENAME).delete();
-                persistedEvents = obj;
+                for (Map.Entry<AccessTokenAppIdPair, List<AppEvent>> entry : obj.entrySet()) {
+                    addEvents(entry.getKey(), entry.getValue());
+                }
             } catch (FileNotFoundException e) {
-                // Expected if we never persisted any events.
+                // Expected once the legacy store has been read.
             } catch (Exception e) {
                 Log.d(TAG, "Got unexpected exception: " + e.toString());
             } finally {
@@ -1572,6 +2030,26 @@ public class AppEventsLogger {
             }
         }
 
+        private static void writeString(DataOutputStream output, String string) throws IOException {
+            if (string == null) {
+                output.writeInt(-1);
+                return;
+            }
+            byte[] bytes = string.getBytes("UTF-8");
+            output.writeInt(bytes.length);
+            output.write(bytes);
+        }
+
+        private static String readString(DataInputStream input) throws IOException {
+            int length = input.readInt();
+            if (length < 0) {
+                return null;
+            }
+            byte[] bytes = new byte[length];
+            input.readFully(bytes);
+            return new String(bytes, "UTF-8");
+        }
+
         public void addEvents(AccessTokenAppIdPair accessTokenAppId, List<AppEvent> eventsToPersist) {
             if (!persistedEvents.containsKey(accessTokenAppId)) {
                 persistedEvents.put(accessTokenAppId, new ArrayList<AppEvent>());
@@ -29,6 +29,7 @@ class ProgressNoopOutputStream extends OutputStream implements RequestOutputStre
     private Request currentRequest;
     private RequestProgress currentRequestProgress;
     private int batchMax;
+    private boolean lengthUnknown;
 
     ProgressNoopOutputStream(Handler callbackHandler) {
         this.callbackHandler = callbackHandler;
@@ -43,11 +44,21 @@ class ProgressNoopOutputStream extends OutputStream implements RequestOutputStre
         return batchMax;
     }
 
+    boolean isLengthKnown() {
+        return !lengthUnknown && batchMax >= 0;
+    }
+
     Map<Request,RequestProgress> getProgressMap() {
         return progressMap;
     }
 
     void addProgress(long size) {
+        if (size < 0) {
+            // e.g. the stat size of a pipe
+            lengthUnknown = true;
+            return;
+        }
+
         if (currentRequestProgress == null) {
             currentRequestProgress = new RequestProgress(callbackHandler, currentRequest);
             progressMap.put(currentRequest, currentRequestProgress);
@@ -35,11 +35,15 @@ import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLEncoder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.Map.Entry;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * A single request to be sent to the Facebook Platform through the <a
@@ -83,6 +87,8 @@ public class Request {
     private static final String USER_AGENT_HEADER = "User-Agent";
     private static final String CONTENT_TYPE_HEADER = "Content-Type";
     private static final String ACCEPT_LANGUAGE_HEADER = "Accept-Language";
+    private static final String CONTENT_ENCODING_HEADER = "Content-Encoding";
+    private static final String GZIP_CONTENT_ENCODING = "gzip";
 
     // Parameter names/values
     private static final String PICTURE_PARAM = "picture";
@@ -125,6 +131,7 @@ public class Request {
     private Object tag;
     private String version;
     private boolean skipClientToken = false;
+    private boolean compressBody = false;
 
     /**
      * Constructs a request without a session, graph path, or any other parameters.
@@ -1021,6 +1028,28 @@ public class Request {
         this.batchEntryOmitResultOnSuccess = batchEntryOmitResultOnSuccess;
     }
 
+    /**
+     * Returns whether the body of this request will be sent gzip-compressed.
+     *
+     * @return true if the body will be compressed
+     */
+    public final boolean getCompressBody() {
+        return this.compressBody;
+    }
+
+    /**
+     * Sets whether the body of this request should be sent gzip-compressed, with a Content-Encoding header. This is
+     * worthwhile for large, repetitive POST bodies such as JSON, but only if the endpoint accepts compressed bodies;
+     * one that does not will typically fail the request with HTTP status 415. When requests are batched, the body is
+     * only compressed if every request in the batch asks for it.
+     *
+     * @param compressBody
+     *            true if the body should be compressed
+     */
+    public final void setCompressBody(boolean compressBody) {
+        this.compressBody = compressBody;
+    }
+
     /**
      * Gets the default Facebook application ID that will be used to submit batched requests if none of those requests
      * specifies a Session. Batched requests require an application ID, so either at least one request in a batch must
@@ -1355,6 +1384,10 @@ public class Request {
         HttpURLConnection connection;
         try {
             connection = createConnection(url);
+            // Attached before the body is written, so that cancelling also aborts uploads
+            if (!requests.attachConnection(connection)) {
+                throw new FacebookOperationCanceledException("Request batch was cancelled");
+            }
 
             serializeToUrlConnection(requests, connection);
         } catch (IOException e) {
@@ -1452,7 +1485,10 @@ public class Request {
         try {
             connection = toHttpConnection(requests);
         } catch (Exception ex) {
-            List<Response> responses = Response.constructErrorResponses(requests.getRequests(), null, new FacebookException(ex));
+            FacebookException exception = requests.isCancelled()
+                    ? new FacebookOperationCanceledException("Request batch was cancelled", ex)
+                    : new FacebookException(ex);
+            List<Response> responses = Response.constructErrorResponses(requests.getRequests(), null, exception);
             runCallbacks(requests, responses);
             return responses;
         }
@@ -1561,6 +1597,13 @@ public class Request {
         List<Response> responses = Response.fromHttpConnection(connection, requests);
 
         Utility.disconnectQuietly(connection);
+        requests.detachConnection();
+
+        if (requests.isCancelled()) {
+            // Whatever was read, or failed to be read, the caller no longer wants it
+            responses = Response.constructErrorResponses(requests.getRequests(), connection,
+                    new FacebookOperationCanceledException("Request batch was cancelled"));
+        }
 
         int numRequests = requests.size();
         if (numRequests != responses.size()) {
@@ -1582,6 +1625,9 @@ public class Request {
             session.extendAccessTokenIfNeeded();
         }
 
+        // The radio is up now, so let any waiting app events go out with this traffic.
+        AppEventsLogger.onGraphTrafficCompleted();
+
         return responses;
     }
 
@@ -1686,13 +1732,17 @@ public class Request {
 
     static HttpURLConnection createConnection(URL url) throws IOException {
         HttpURLConnection connection;
-        connection = (HttpURLConnection) url.openConnection();
+        Settings.ConnectionFactory connectionFactory = Settings.getConnectionFactory();
+        if (connectionFactory != null) {
+            connection = connectionFactory.openConnection(url);
+        } else {
+            connection = (HttpURLConnection) url.openConnection();
+        }
 
         connection.setRequestProperty(USER_AGENT_HEADER, getUserAgent());
         connection.setRequestProperty(CONTENT_TYPE_HEADER, getMimeContentType());
         connection.setRequestProperty(ACCEPT_LANGUAGE_HEADER, Locale.getDefault().toString());
 
-        connection.setChunkedStreamingMode(0);
         return connection;
     }
 
@@ -1870,6 +1920,24 @@ public class Request {
         return false;
     }
 
+    // File attachments can be measured without reading them, so the body length is cheap to compute up front.
+    // Bitmaps would have to be compressed twice to measure them, so their uploads are left to chunked streaming.
+    private static boolean hasOnlyFileAttachments(RequestBatch requests) {
+        boolean hasFileAttachments = false;
+        for (Request request : requests) {
+            for (String key : request.parameters.keySet()) {
+                Object value = request.parameters.get(key);
+                if (value instanceof Bitmap) {
+                    return false;
+                } else if (value instanceof ParcelFileDescriptor || value instanceof ParcelFileDescriptorWithMimeType) {
+                    hasFileAttachments = true;
+                }
+            }
+        }
+
+        return hasFileAttachments;
+    }
+
     final static void serializeToUrlConnection(RequestBatch requests, HttpURLConnection connection)
     throws IOException, JSONException {
         Logger logger = new Logger(LoggingBehavior.REQUESTS, "Request");
@@ -1900,21 +1968,48 @@ public class Request {
 
         connection.setDoOutput(true);
 
+        boolean compressBody = shouldCompressBody(requests);
+        if (compressBody) {
+            connection.setRequestProperty(CONTENT_ENCODING_HEADER, GZIP_CONTENT_ENCODING);
+            logger.appendKeyValue(CONTENT_ENCODING_HEADER, GZIP_CONTENT_ENCODING);
+        }
+
         OutputStream outputStream = null;
+        ByteCountingOutputStream bodyCounter = null;
+        ByteCountingOutputStream sentCounter = null;
         try {
-            if (hasOnProgressCallbacks(requests)) {
-                ProgressNoopOutputStream countingStream = null;
+            boolean hasOnProgressCallbacks = hasOnProgressCallbacks(requests);
+            ProgressNoopOutputStream countingStream = null;
+            if (hasOnProgressCallbacks || (!compressBody && hasOnlyFileAttachments(requests))) {
                 countingStream = new ProgressNoopOutputStream(requests.getCallbackHandler());
                 processRequest(requests, null, numRequests, url, countingStream);
+            }
 
+            // With a known length the body streams straight to the socket with a Content-Length header,
+            // otherwise fall back to chunked streaming so it is not buffered in memory either way. The length
+            // of a compressed body is not known until it has been written.
+            if (!compressBody && countingStream != null && countingStream.isLengthKnown()) {
+                connection.setFixedLengthStreamingMode(countingStream.getMaxProgress());
+            } else {
+                connection.setChunkedStreamingMode(0);
+            }
+
+            sentCounter = new ByteCountingOutputStream(new BufferedOutputStream(connection.getOutputStream()));
+            OutputStream bodyStream = sentCounter;
+            if (compressBody) {
+                // Serializer writes in small pieces, which GZIPOutputStream would deflate one at a time
+                bodyStream = new BufferedOutputStream(new GZIPOutputStream(sentCounter));
+            }
+            bodyCounter = new ByteCountingOutputStream(bodyStream);
+
+            if (hasOnProgressCallbacks) {
                 int max = countingStream.getMaxProgress();
                 Map<Request, RequestProgress> progressMap = countingStream.getProgressMap();
 
-                BufferedOutputStream buffered = new BufferedOutputStream(connection.getOutputStream());
-                outputStream = new ProgressOutputStream(buffered, requests, progressMap, max);
+                outputStream = new ProgressOutputStream(bodyCounter, requests, progressMap, max);
             }
             else {
-                outputStream = new BufferedOutputStream(connection.getOutputStream());
+                outputStream = bodyCounter;
             }
 
             processRequest(requests, logger, numRequests, url, outputStream);
@@ -1925,9 +2020,50 @@ public class Request {
             }
         }
 
+        requests.setBodyLengths(bodyCounter.getCount(), sentCounter.getCount());
+        if (compressBody) {
+            logger.appendKeyValue("Body bytes", String.format("%d, sent %d", bodyCounter.getCount(),
+                    sentCounter.getCount()));
+        }
+
         logger.log();
     }
 
+    private static boolean shouldCompressBody(RequestBatch requests) {
+        for (Request request : requests) {
+            if (!request.compressBody) {
+                return false;
+            }
+        }
+        return requests.size() > 0;
+    }
+
+    // Counts the bytes written through it, so compressed and uncompressed body sizes can be reported.
+    private static class ByteCountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        ByteCountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        @Override
+        public void write(int oneByte) throws IOException {
+            out.write(oneByte);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            // FilterOutputStream would otherwise write one byte at a time
+            out.write(buffer, offset, length);
+            count += length;
+        }
+    }
+
     private static void processRequest(RequestBatch requests, Logger logger, int numRequests, URL url, OutputStream outputStream)
             throws IOException, JSONException
     {
@@ -2169,13 +2305,29 @@ public class Request {
     }
 
     private static class Serializer implements KeyValueSerializer {
+        // Multipart framing is pre-encoded once; only keys and values are encoded per write.
+        private static final byte[] CRLF = encode("\r\n");
+        private static final byte[] BOUNDARY_LINE = encode("--" + MIME_BOUNDARY + "\r\n");
+        private static final byte[] CONTENT_DISPOSITION_PREFIX = encode("Content-Disposition: form-data; name=\"");
+        private static final byte[] FILENAME_PREFIX = encode("\"; filename=\"");
+        private static final byte[] CONTENT_DISPOSITION_SUFFIX = encode("\"\r\n");
+        private static final byte[] CONTENT_TYPE_PREFIX = encode(CONTENT_TYPE_HEADER + ": ");
+        private static final int COPY_BUFFER_SIZE = 8192;
+        // The output is a stream rather than a socket, so transferTo maps the range it is given; this keeps
+        // each mapping small however large the file
+        private static final long TRANSFER_CHUNK_SIZE = 64 * 1024;
+
         private final OutputStream outputStream;
         private final Logger logger;
+        // Only build log strings if they are going to be logged
+        private final boolean shouldLog;
         private boolean firstWrite = true;
+        private byte[] copyBuffer;
 
         public Serializer(OutputStream outputStream, Logger logger) {
             this.outputStream = outputStream;
             this.logger = logger;
+            this.shouldLog = logger != null && Settings.isLoggingBehaviorEnabled(LoggingBehavior.REQUESTS);
         }
 
         public void writeObject(String key, Object value, Request request) throws IOException {
@@ -2213,23 +2365,23 @@ public class Request {
                 JSONObject requestJson = requestJsonArray.getJSONObject(i);
                 requestOutputStream.setCurrentRequest(request);
                 if (i > 0) {
-                    write(",%s", requestJson.toString());
-                } else {
-                    write("%s", requestJson.toString());
+                    write(",");
                 }
+                write(requestJson.toString());
                 i++;
             }
             write("]");
-            if (logger != null) {
+            if (shouldLog) {
                 logger.appendKeyValue("    " + key, requestJsonArray.toString());
             }
         }
 
         public void writeString(String key, String value) throws IOException {
             writeContentDisposition(key, null, null);
-            writeLine("%s", value);
+            write(value);
+            writeLine();
             writeRecordBoundary();
-            if (logger != null) {
+            if (shouldLog) {
                 logger.appendKeyValue("    " + key, value);
             }
         }
@@ -2238,9 +2390,9 @@ public class Request {
             writeContentDisposition(key, key, "image/png");
             // Note: quality parameter is ignored for PNG
             bitmap.compress(Bitmap.CompressFormat.PNG, 100, outputStream);
-            writeLine("");
+            writeLine();
             writeRecordBoundary();
-            if (logger != null) {
+            if (shouldLog) {
                 logger.appendKeyValue("    " + key, "<Image>");
             }
         }
@@ -2248,9 +2400,9 @@ public class Request {
         public void writeBytes(String key, byte[] bytes) throws IOException {
             writeContentDisposition(key, key, "content/unknown");
             this.outputStream.write(bytes);
-            writeLine("");
+            writeLine();
             writeRecordBoundary();
-            if (logger != null) {
+            if (shouldLog) {
                 logger.appendKeyValue("    " + key, String.format("<Data: %d>", bytes.length));
             }
         }
@@ -2265,7 +2417,7 @@ public class Request {
             }
             writeContentDisposition(key, key, mimeType);
 
-            int totalBytes = 0;
+            long totalBytes = 0;
 
             if (outputStream instanceof ProgressNoopOutputStream) {
                 // If we are only counting bytes then skip reading the file
@@ -2273,65 +2425,100 @@ public class Request {
             }
             else {
                 ParcelFileDescriptor.AutoCloseInputStream inputStream = null;
-                BufferedInputStream bufferedInputStream = null;
                 try {
                     inputStream = new ParcelFileDescriptor.AutoCloseInputStream(descriptor);
-                    bufferedInputStream = new BufferedInputStream(inputStream);
-
-                    byte[] buffer = new byte[8192];
-                    int bytesRead;
-                    while ((bytesRead = bufferedInputStream.read(buffer)) != -1) {
-                        this.outputStream.write(buffer, 0, bytesRead);
-                        totalBytes += bytesRead;
+                    if (descriptor.getStatSize() >= 0) {
+                        totalBytes = transferFile(inputStream.getChannel());
+                    } else {
+                        // Pipes and sockets have no size, so copy until end of stream
+                        totalBytes = copyStream(inputStream);
                     }
                 } finally {
-                    if (bufferedInputStream != null) {
-                        bufferedInputStream.close();
-                    }
                     if (inputStream != null) {
                         inputStream.close();
                     }
                 }
             }
-            writeLine("");
+            writeLine();
             writeRecordBoundary();
-            if (logger != null) {
+            if (shouldLog) {
                 logger.appendKeyValue("    " + key, String.format("<Data: %d>", totalBytes));
             }
         }
 
+        private long transferFile(FileChannel fileChannel) throws IOException {
+            WritableByteChannel outputChannel = Channels.newChannel(outputStream);
+            long size = fileChannel.size();
+            long position = 0;
+            while (position < size) {
+                long transferred = fileChannel.transferTo(position, Math.min(size - position, TRANSFER_CHUNK_SIZE),
+                        outputChannel);
+                if (transferred <= 0) {
+                    break;
+                }
+                position += transferred;
+            }
+            return position;
+        }
+
+        private long copyStream(InputStream inputStream) throws IOException {
+            if (copyBuffer == null) {
+                copyBuffer = new byte[COPY_BUFFER_SIZE];
+            }
+            long totalBytes = 0;
+            int bytesRead;
+            while ((bytesRead = inputStream.read(copyBuffer)) != -1) {
+                this.outputStream.write(copyBuffer, 0, bytesRead);
+                totalBytes += bytesRead;
+            }
+            return totalBytes;
+        }
+
         public void writeRecordBoundary() throws IOException {
-            writeLine("--%s", MIME_BOUNDARY);
+            writeBytes(BOUNDARY_LINE);
         }
 
         public void writeContentDisposition(String name, String filename, String contentType) throws IOException {
-            write("Content-Disposition: form-data; name=\"%s\"", name);
+            writeBytes(CONTENT_DISPOSITION_PREFIX);
+            write(name);
             if (filename != null) {
-                write("; filename=\"%s\"", filename);
+                writeBytes(FILENAME_PREFIX);
+                write(filename);
             }
-            writeLine(""); // newline after Content-Disposition
+            writeBytes(CONTENT_DISPOSITION_SUFFIX);
             if (contentType != null) {
-                writeLine("%s: %s", CONTENT_TYPE_HEADER, contentType);
+                writeBytes(CONTENT_TYPE_PREFIX);
+                write(contentType);
+                writeLine();
             }
-            writeLine(""); // blank line before content
+            writeLine(); // blank line before content
         }
 
-        public void write(String format, Object... args) throws IOException {
+        public void write(String value) throws IOException {
+            writeBytes(encode(value));
+        }
+
+        public void writeLine() throws IOException {
+            writeBytes(CRLF);
+        }
+
+        private void writeBytes(byte[] bytes) throws IOException {
             if (firstWrite) {
                 // Prepend all of our output with a boundary string.
-                this.outputStream.write("--".getBytes());
-                this.outputStream.write(MIME_BOUNDARY.getBytes());
-                this.outputStream.write("\r\n".getBytes());
+                this.outputStream.write(BOUNDARY_LINE);
                 firstWrite = false;
             }
-            this.outputStream.write(String.format(format, args).getBytes());
+            this.outputStream.write(bytes);
         }
 
-        public void writeLine(String format, Object... args) throws IOException {
-            write(format, args);
-            write("\r\n");
+        private static byte[] encode(String value) {
+            try {
+                return value.getBytes("UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                // UTF-8 is always supported
+                throw new FacebookException(e);
+            }
         }
-
     }
 
     /**
@@ -18,6 +18,7 @@ package com.facebook;
 
 import android.os.Handler;
 
+import java.net.HttpURLConnection;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -33,6 +34,10 @@ public class RequestBatch extends AbstractList<Request> {
     private final String id = Integer.valueOf(idGenerator.incrementAndGet()).toString();
     private List<Callback> callbacks = new ArrayList<Callback>();
     private String batchApplicationId;
+    private long bodyLength;
+    private long sentBodyLength;
+    private volatile boolean cancelled;
+    private HttpURLConnection connection;
 
     /**
      * Constructor. Creates an empty batch.
@@ -170,6 +175,69 @@ public class RequestBatch extends AbstractList<Request> {
         this.batchApplicationId = batchApplicationId;
     }
 
+    // The size of the last body sent for this batch, before and after compression
+    final long getBodyLength() {
+        return bodyLength;
+    }
+
+    final long getSentBodyLength() {
+        return sentBodyLength;
+    }
+
+    final void setBodyLengths(long bodyLength, long sentBodyLength) {
+        this.bodyLength = bodyLength;
+        this.sentBodyLength = sentBodyLength;
+    }
+
+    /**
+     * Cancels this batch. If it is being sent, its connection is closed, which stops the transfer and frees the
+     * socket, and every request in the batch completes with an error whose exception is a
+     * {@link FacebookOperationCanceledException}. A batch that has not been executed yet fails the same way once it
+     * is. Cancelling a batch that has already completed has no effect.
+     * <p/>
+     * This returns immediately; the connection is closed on the {@link Settings#getExecutor() SDK executor}.
+     */
+    public final void cancel() {
+        final HttpURLConnection connectionToClose;
+        synchronized (this) {
+            cancelled = true;
+            connectionToClose = connection;
+            connection = null;
+        }
+        if (connectionToClose != null) {
+            // disconnect() may wait for a read in progress on the request thread to return
+            Settings.getExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    connectionToClose.disconnect();
+                }
+            });
+        }
+    }
+
+    /**
+     * Returns whether {@link #cancel()} has been called on this batch.
+     *
+     * @return true if the batch has been cancelled
+     */
+    public final boolean isCancelled() {
+        return cancelled;
+    }
+
+    // Remembers the connection the batch is being sent on, so that cancel() can close it. Returns false if the
+    // batch has been cancelled already.
+    final synchronized boolean attachConnection(HttpURLConnection connection) {
+        if (cancelled) {
+            return false;
+        }
+        this.connection = connection;
+        return true;
+    }
+
+    final synchronized void detachConnection() {
+        connection = null;
+    }
+
     /**
      * Executes this batch on the current thread and returns the responses.
      * <p/>
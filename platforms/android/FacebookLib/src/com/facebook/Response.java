@@ -17,6 +17,7 @@
 package com.facebook;
 
 import android.content.Context;
+import android.os.Build;
 import com.facebook.internal.CacheableRequestBatch;
 import com.facebook.internal.FileLruCache;
 import com.facebook.internal.Logger;
@@ -28,6 +29,7 @@ import org.json.JSONException;
 import org.json.JSONObject;
 import org.json.JSONTokener;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
@@ -320,6 +322,9 @@ public class Response {
                     }
                 }
             }
+            if (stream != null) {
+                stream = new CancellableInputStream(stream, requests);
+            }
 
             return createResponsesFromStream(stream, connection, requests, false);
         } catch (FacebookException facebookException) {
@@ -339,9 +344,53 @@ public class Response {
         }
     }
 
+    // Stops reading once the batch has been cancelled, rather than parsing a response nobody wants. Closing the
+    // connection alone does not do that, since HttpURLConnection.disconnect() may wait for a read in progress.
+    private static class CancellableInputStream extends FilterInputStream {
+        private final RequestBatch requests;
+
+        CancellableInputStream(InputStream in, RequestBatch requests) {
+            super(in);
+            this.requests = requests;
+        }
+
+        @Override
+        public int read() throws IOException {
+            checkNotCancelled();
+            return in.read();
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            checkNotCancelled();
+            return in.read(buffer, offset, count);
+        }
+
+        @Override
+        public long skip(long byteCount) throws IOException {
+            checkNotCancelled();
+            return in.skip(byteCount);
+        }
+
+        private void checkNotCancelled() throws IOException {
+            if (requests.isCancelled()) {
+                throw new IOException("Request batch was cancelled");
+            }
+        }
+    }
+
     static List<Response> createResponsesFromStream(InputStream stream, HttpURLConnection connection,
             RequestBatch requests, boolean isFromCache) throws FacebookException, JSONException, IOException {
 
+        // Stream-parse unless the raw response has to be logged, which needs the whole body as a String anyway.
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB &&
+                !Settings.isLoggingBehaviorEnabled(LoggingBehavior.INCLUDE_RAW_RESPONSES)) {
+            List<Response> responses = ResponseStreamParser.parse(stream, connection, requests, isFromCache);
+            Logger.log(LoggingBehavior.REQUESTS, RESPONSE_LOG_TAG, "Response\n  Id: %s\n  Responses:\n%s\n",
+                    requests.getId(), responses);
+            return responses;
+        }
+
         String responseString = Utility.readStreamToString(stream);
         Logger.log(LoggingBehavior.INCLUDE_RAW_RESPONSES, RESPONSE_LOG_TAG,
                 "Response (raw)\n  Size: %d\n  Response:\n%s\n", responseString.length(),
@@ -362,7 +411,7 @@ public class Response {
         return responses;
     }
 
-    private static List<Response> createResponsesFromObject(HttpURLConnection connection, List<Request> requests,
+    static List<Response> createResponsesFromObject(HttpURLConnection connection, List<Request> requests,
             Object object, boolean isFromCache) throws FacebookException, JSONException {
         assert (connection != null) || isFromCache;
 
@@ -415,7 +464,7 @@ public class Response {
         return responses;
     }
 
-    private static Response createResponseFromObject(Request request, HttpURLConnection connection, Object object,
+    static Response createResponseFromObject(Request request, HttpURLConnection connection, Object object,
             boolean isFromCache, Object originalResult) throws JSONException {
         if (object instanceof JSONObject) {
             JSONObject jsonObject = (JSONObject) object;
@@ -0,0 +1,140 @@
+/**
+ * Copyright 2010-present Facebook.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds Responses by tokenizing the response body directly from the stream, rather than reading the whole body
+ * into a String first. For batches, each entry is turned into a Response as soon as it has been read.
+ *
+ * Relies on android.util.JsonReader, so it must only be used on API level 11 and above.
+ */
+final class ResponseStreamParser {
+    private static final String ENCODING = "UTF-8";
+
+    private ResponseStreamParser() {
+    }
+
+    static List<Response> parse(InputStream stream, HttpURLConnection connection, RequestBatch requests,
+            boolean isFromCache) throws FacebookException, JSONException, IOException {
+        JsonReader reader = new JsonReader(new InputStreamReader(stream, ENCODING));
+        // The service may answer with a bare literal such as "true".
+        reader.setLenient(true);
+
+        int numRequests = requests.size();
+        if (numRequests == 1 || reader.peek() != JsonToken.BEGIN_ARRAY) {
+            Object object = readValue(reader);
+            return Response.createResponsesFromObject(connection, requests, object, isFromCache);
+        }
+
+        List<Response> responses = new ArrayList<Response>(numRequests);
+        // Kept so that errors can still expose the whole batch result, as in the non-streaming path.
+        JSONArray batchResult = new JSONArray();
+
+        reader.beginArray();
+        while (reader.hasNext()) {
+            int index = batchResult.length();
+            if (index >= numRequests) {
+                throw new FacebookException("Unexpected number of results");
+            }
+
+            Object entry = readValue(reader);
+            batchResult.put(entry);
+
+            Request request = requests.get(index);
+            try {
+                responses.add(Response.createResponseFromObject(request, connection, entry, isFromCache,
+                        batchResult));
+            } catch (JSONException e) {
+                responses.add(new Response(request, connection, new FacebookRequestError(connection, e)));
+            } catch (FacebookException e) {
+                responses.add(new Response(request, connection, new FacebookRequestError(connection, e)));
+            }
+        }
+        reader.endArray();
+
+        if (responses.size() != numRequests) {
+            throw new FacebookException("Unexpected number of results");
+        }
+        return responses;
+    }
+
+    private static Object readValue(JsonReader reader) throws IOException, JSONException {
+        switch (reader.peek()) {
+            case BEGIN_OBJECT:
+                JSONObject jsonObject = new JSONObject();
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String name = reader.nextName();
+                    jsonObject.put(name, readValue(reader));
+                }
+                reader.endObject();
+                return jsonObject;
+            case BEGIN_ARRAY:
+                JSONArray jsonArray = new JSONArray();
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    jsonArray.put(readValue(reader));
+                }
+                reader.endArray();
+                return jsonArray;
+            case STRING:
+                return reader.nextString();
+            case NUMBER:
+                return parseNumber(reader.nextString());
+            case BOOLEAN:
+                return reader.nextBoolean();
+            case NULL:
+                reader.nextNull();
+                return JSONObject.NULL;
+            default:
+                throw new JSONException("Unexpected token " + reader.peek());
+        }
+    }
+
+    // Mirrors the number handling of JSONTokener, so both paths produce the same value types.
+    private static Object parseNumber(String literal) {
+        if (literal.indexOf('.') == -1 && literal.indexOf('e') == -1 && literal.indexOf('E') == -1) {
+            try {
+                long longValue = Long.parseLong(literal);
+                if (longValue <= Integer.MAX_VALUE && longValue >= Integer.MIN_VALUE) {
+                    return (int) longValue;
+                }
+                return longValue;
+            } catch (NumberFormatException e) {
+                // Too large for a long, fall through
+            }
+        }
+        try {
+            return Double.valueOf(literal);
+        } catch (NumberFormatException e) {
+            return literal;
+        }
+    }
+}
@@ -0,0 +1,224 @@
+/**
+ * Copyright 2010-present Facebook.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook;
+
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The Executor the SDK uses for its background work by default, see {@link Settings#getExecutor()}. It is a
+ * dedicated pool rather than the one shared with the app's AsyncTasks, and lets the app decide what happens once
+ * both the pool and its queue are full, instead of always throwing a RejectedExecutionException.
+ * <p/>
+ * Pool sizes can be changed at any time through {@link #setCorePoolSize(int)} and
+ * {@link #setMaximumPoolSize(int)}, or a differently sized instance can be passed to
+ * {@link Settings#setExecutor(java.util.concurrent.Executor)}.
+ */
+public class SdkExecutor extends ThreadPoolExecutor {
+    public static final int DEFAULT_CORE_POOL_SIZE = 5;
+    public static final int DEFAULT_MAXIMUM_POOL_SIZE = 128;
+    public static final int DEFAULT_QUEUE_CAPACITY = 128;
+    private static final int DEFAULT_KEEP_ALIVE = 1;
+    // How often a submitter blocked under BLOCK checks whether the executor was shut down
+    private static final long BLOCK_POLL_MILLIS = 100;
+
+    private static final ThreadFactory DEFAULT_THREAD_FACTORY = new ThreadFactory() {
+        private final AtomicInteger counter = new AtomicInteger(0);
+
+        public Thread newThread(Runnable runnable) {
+            return new Thread(runnable, "FacebookSdk #" + counter.incrementAndGet());
+        }
+    };
+
+    /**
+     * What to do with a task submitted while every thread is busy and the queue is full.
+     */
+    public enum BackpressurePolicy {
+        /**
+         * Runs the task on the submitting thread. Only suitable when tasks are never submitted from the main
+         * thread, since SDK tasks may do network I/O.
+         */
+        CALLER_RUNS,
+
+        /**
+         * Drops the oldest queued task that implements {@link Discardable} to make room, such as images being
+         * prefetched for views that are not on screen yet. If nothing queued can be dropped, the submitted task
+         * is dropped if it is itself Discardable, and rejected with a RejectedExecutionException otherwise.
+         */
+        DROP_OLDEST_PREFETCH,
+
+        /**
+         * Blocks the submitting thread until the queue has room, or rejects the task if the executor is shut down
+         * meanwhile. Must not be used when tasks may be submitted from the main thread, which would then stall
+         * for as long as the SDK's network I/O keeps the pool busy.
+         */
+        BLOCK
+    }
+
+    /**
+     * A task that may be dropped under backpressure instead of being run.
+     */
+    public interface Discardable extends Runnable {
+        /**
+         * Called instead of {@link #run()} when the task has been dropped. Implementations may reschedule the
+         * work later, but must not submit it again from within this call.
+         */
+        void onDiscarded();
+    }
+
+    private volatile BackpressurePolicy backpressurePolicy;
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong discardedCount = new AtomicLong();
+
+    /**
+     * Creates an executor with the default pool sizes and queue capacity, dropping prefetch work under
+     * backpressure.
+     */
+    public SdkExecutor() {
+        this(DEFAULT_CORE_POOL_SIZE, DEFAULT_MAXIMUM_POOL_SIZE, DEFAULT_QUEUE_CAPACITY,
+                BackpressurePolicy.DROP_OLDEST_PREFETCH);
+    }
+
+    /**
+     * Creates an executor.
+     *
+     * @param corePoolSize       the number of threads kept alive while idle
+     * @param maximumPoolSize    the maximum number of threads; more than corePoolSize are only started once the
+     *                           queue is full
+     * @param queueCapacity      the number of tasks that may wait for a thread
+     * @param backpressurePolicy what to do once the pool and the queue are full
+     */
+    public SdkExecutor(int corePoolSize, int maximumPoolSize, int queueCapacity,
+            BackpressurePolicy backpressurePolicy) {
+        super(corePoolSize, maximumPoolSize, DEFAULT_KEEP_ALIVE, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(queueCapacity), DEFAULT_THREAD_FACTORY,
+                new BackpressureHandler());
+        setBackpressurePolicy(backpressurePolicy);
+    }
+
+    public BackpressurePolicy getBackpressurePolicy() {
+        return backpressurePolicy;
+    }
+
+    public void setBackpressurePolicy(BackpressurePolicy backpressurePolicy) {
+        if (backpressurePolicy == null) {
+            throw new NullPointerException("backpressurePolicy");
+        }
+        this.backpressurePolicy = backpressurePolicy;
+    }
+
+    /**
+     * Returns the number of tasks waiting for a thread.
+     */
+    public int getQueueDepth() {
+        return getQueue().size();
+    }
+
+    /**
+     * Returns how many times a task was submitted while the pool and the queue were full, whatever the policy
+     * then did with it.
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * Returns the number of Discardable tasks dropped under {@link BackpressurePolicy#DROP_OLDEST_PREFETCH}.
+     */
+    public long getDiscardedCount() {
+        return discardedCount.get();
+    }
+
+    private void discard(Discardable task) {
+        discardedCount.incrementAndGet();
+        task.onDiscarded();
+    }
+
+    // Returns the oldest queued Discardable, after removing it from the queue
+    private Discardable removeOldestDiscardable() {
+        BlockingQueue<Runnable> queue = getQueue();
+        Iterator<Runnable> iterator = queue.iterator();
+        while (iterator.hasNext()) {
+            Runnable queued = iterator.next();
+            if ((queued instanceof Discardable) && queue.remove(queued)) {
+                return (Discardable) queued;
+            }
+        }
+        return null;
+    }
+
+    private static final class BackpressureHandler implements RejectedExecutionHandler {
+        @Override
+        public void rejectedExecution(Runnable runnable, ThreadPoolExecutor threadPoolExecutor) {
+            SdkExecutor executor = (SdkExecutor) threadPoolExecutor;
+            if (executor.isShutdown()) {
+                throw new RejectedExecutionException("SdkExecutor has been shut down");
+            }
+            executor.rejectedCount.incrementAndGet();
+
+            switch (executor.backpressurePolicy) {
+                case CALLER_RUNS:
+                    runnable.run();
+                    break;
+                case BLOCK:
+                    try {
+                        while (!executor.getQueue().offer(runnable, BLOCK_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                            if (executor.isShutdown()) {
+                                throw new RejectedExecutionException("SdkExecutor has been shut down");
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new RejectedExecutionException("Interrupted while waiting for queue space");
+                    }
+                    checkNotShutDown(executor, runnable);
+                    break;
+                case DROP_OLDEST_PREFETCH:
+                    // Each victim makes room, unless another thread takes it first, in which case the next one goes
+                    Discardable victim;
+                    while ((victim = executor.removeOldestDiscardable()) != null) {
+                        executor.discard(victim);
+                        if (executor.getQueue().offer(runnable)) {
+                            checkNotShutDown(executor, runnable);
+                            return;
+                        }
+                    }
+                    if (runnable instanceof Discardable) {
+                        executor.discard((Discardable) runnable);
+                    } else {
+                        throw new RejectedExecutionException("SdkExecutor is saturated and nothing can be dropped");
+                    }
+                    break;
+            }
+        }
+
+        // A task queued directly may land after shutdown, when no thread will take it any more
+        private static void checkNotShutDown(SdkExecutor executor, Runnable runnable) {
+            if (executor.isShutdown() && executor.getQueue().remove(runnable)) {
+                throw new RejectedExecutionException("SdkExecutor has been shut down");
+            }
+        }
+    }
+}
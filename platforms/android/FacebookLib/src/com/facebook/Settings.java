@@ -25,7 +25,6 @@ import android.content.pm.PackageManager;
 import android.content.pm.Signature;
 import android.database.Cursor;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.Handler;
 import android.os.Looper;
 import android.util.Base64;
@@ -38,7 +37,9 @@ import com.facebook.model.GraphObject;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.lang.reflect.Field;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
@@ -46,7 +47,6 @@ import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
@@ -57,6 +57,7 @@ public final class Settings {
     private static final HashSet<LoggingBehavior> loggingBehaviors =
             new HashSet<LoggingBehavior>(Arrays.asList(LoggingBehavior.DEVELOPER_ERRORS));
     private static volatile Executor executor;
+    private static volatile ConnectionFactory connectionFactory;
     private static volatile boolean shouldAutoPublishInstall;
     private static volatile String appVersion;
     private static volatile String applicationId;
@@ -68,9 +69,6 @@ public final class Settings {
     private static volatile boolean platformCompatibilityEnabled;
     private static volatile boolean isDebugEnabled = BuildConfig.DEBUG;
 
-    private static final int DEFAULT_CORE_POOL_SIZE = 5;
-    private static final int DEFAULT_MAXIMUM_POOL_SIZE = 128;
-    private static final int DEFAULT_KEEP_ALIVE = 1;
     private static final Object LOCK = new Object();
 
     private static final Uri ATTRIBUTION_ID_CONTENT_URI =
@@ -85,16 +83,6 @@ public final class Settings {
 
     private static final String APP_EVENT_PREFERENCES = "com.facebook.sdk.appEventPreferences";
 
-    private static final BlockingQueue<Runnable> DEFAULT_WORK_QUEUE = new LinkedBlockingQueue<Runnable>(10);
-
-    private static final ThreadFactory DEFAULT_THREAD_FACTORY = new ThreadFactory() {
-        private final AtomicInteger counter = new AtomicInteger(0);
-
-        public Thread newThread(Runnable runnable) {
-            return new Thread(runnable, "FacebookSdk #" + counter.incrementAndGet());
-        }
-    };
-
     /**
      * loadDefaultsFromMetadata will attempt to load certain settings (e.g., application ID, client token) from
      * metadata in the app's AndroidManifest.xml. The application ID will be read from this key.
@@ -233,20 +221,17 @@ public final class Settings {
     /**
      * Returns the Executor used by the SDK for non-AsyncTask background work.
      *
-     * By default this uses AsyncTask Executor via reflection if the API level is high enough.
-     * Otherwise this creates a new Executor with defaults similar to those used in AsyncTask.
+     * By default this is an {@link SdkExecutor} dedicated to the SDK, so that bursts of SDK work neither
+     * compete with the app's own AsyncTasks nor fail with a RejectedExecutionException once its queue is full.
+     * Its pool sizes, backpressure policy and counters are available by casting the result to SdkExecutor,
+     * unless a different Executor has been set.
      *
      * @return an Executor used by the SDK.  This will never be null.
      */
     public static Executor getExecutor() {
         synchronized (LOCK) {
             if (Settings.executor == null) {
-                Executor executor = getAsyncTaskExecutor();
-                if (executor == null) {
-                    executor = new ThreadPoolExecutor(DEFAULT_CORE_POOL_SIZE, DEFAULT_MAXIMUM_POOL_SIZE,
-                            DEFAULT_KEEP_ALIVE, TimeUnit.SECONDS, DEFAULT_WORK_QUEUE, DEFAULT_THREAD_FACTORY);
-                }
-                Settings.executor = executor;
+                Settings.executor = new SdkExecutor();
             }
         }
         return Settings.executor;
@@ -265,6 +250,36 @@ public final class Settings {
         }
     }
 
+    /**
+     * Opens the connections that Requests are sent on, for apps that bring their own HTTP stack, for instance
+     * one that caches DNS lookups.
+     */
+    public interface ConnectionFactory {
+        /**
+         * Returns a new, unconnected HttpURLConnection for the given URL.
+         */
+        HttpURLConnection openConnection(URL url) throws IOException;
+    }
+
+    /**
+     * Gets the ConnectionFactory that Requests are sent on, or null if they use URL.openConnection().
+     *
+     * @return the ConnectionFactory, or null
+     */
+    public static ConnectionFactory getConnectionFactory() {
+        return connectionFactory;
+    }
+
+    /**
+     * Sets the ConnectionFactory that Requests are sent on.
+     *
+     * @param connectionFactory
+     *          the ConnectionFactory to use, or null to use URL.openConnection()
+     */
+    public static void setConnectionFactory(ConnectionFactory connectionFactory) {
+        Settings.connectionFactory = connectionFactory;
+    }
+
     /**
      * Gets the base Facebook domain to use when making Web requests; in production code this will always be
      * "facebook.com".
@@ -290,32 +305,6 @@ public final class Settings {
         Settings.facebookDomain = facebookDomain;
     }
 
-    private static Executor getAsyncTaskExecutor() {
-        Field executorField = null;
-        try {
-            executorField = AsyncTask.class.getField("THREAD_POOL_EXECUTOR");
-        } catch (NoSuchFieldException e) {
-            return null;
-        }
-
-        Object executorObject = null;
-        try {
-            executorObject = executorField.get(null);
-        } catch (IllegalAccessException e) {
-            return null;
-        }
-
-        if (executorObject == null) {
-            return null;
-        }
-
-        if (!(executorObject instanceof Executor)) {
-            return null;
-        }
-
-        return (Executor) executorObject;
-    }
-
     static void publishInstallAsync(final Context context, final String applicationId,
         final Request.Callback callback) {
         // grab the application context ahead of time, since we will return to the caller immediately.
@@ -26,8 +26,13 @@ import org.json.JSONTokener;
 
 import java.io.*;
 import java.security.InvalidParameterException;
-import java.util.Date;
-import java.util.PriorityQueue;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicLong;
 
 // This class is intended to be thread-safe.
@@ -50,6 +55,16 @@ import java.util.concurrent.atomic.AtomicLong;
 // corresponding file has been deleted.  Given this and that cache files never change other than deleting in trim()
 // or clear(),  we only have to ensure that there is at most one trim() or clear() process deleting files at any
 // given time.
+//
+// The size and recency of every cache file is kept in an in-memory index, so that trim() never has to list or stat
+// the directory.  The index is persisted in an append-only journal file (similar to okhttp's DiskLruCache) with one
+// line per operation:
+//     PUT <file name> <size>
+//     READ <file name>
+//     REMOVE <file name>
+// The journal is loaded lazily on first use, and reconciled once against a listing of the directory so that files
+// written by older versions, or whose PUT was lost in a crash, are still accounted for.  Once redundant lines
+// outnumber live entries, trim() rewrites it with a single PUT per entry.
 
 /**
  * com.facebook.internal is solely for the use of other packages within the Facebook SDK for Android. Use of
@@ -61,6 +76,15 @@ public final class FileLruCache {
     private static final String HEADER_CACHEKEY_KEY = "key";
     private static final String HEADER_CACHE_CONTENT_TAG_KEY = "tag";
 
+    private static final String JOURNAL_FILE_NAME = "journal";
+    private static final String JOURNAL_TMP_FILE_NAME = "journal.tmp";
+    private static final String JOURNAL_MAGIC = "com.facebook.internal.FileLruCache";
+    private static final String JOURNAL_VERSION = "1";
+    private static final String JOURNAL_PUT = "PUT";
+    private static final String JOURNAL_READ = "READ";
+    private static final String JOURNAL_REMOVE = "REMOVE";
+    private static final int JOURNAL_COMPACTION_THRESHOLD = 2000;
+
     private static final AtomicLong bufferIndex = new AtomicLong();
 
     private final String tag;
@@ -71,6 +95,13 @@ public final class FileLruCache {
     private final Object lock;
     private AtomicLong lastClearCacheTime = new AtomicLong(0);
 
+    // All guarded by lock.  The index is access-ordered, so iteration starts at the least recently used file.
+    private final LinkedHashMap<String, Long> index = new LinkedHashMap<String, Long>(0, 0.75f, true);
+    private long indexedSize;
+    private boolean isIndexLoaded;
+    private Writer journalWriter;
+    private int redundantJournalOpCount;
+
     // The value of tag should be a final String that works as a directory name.
     public FileLruCache(Context context, String tag, Limits limits) {
         this.tag = tag;
@@ -85,11 +116,7 @@ public final class FileLruCache {
         }
     }
 
-    // This is not robust to files changing dynamically underneath it and should therefore only be used
-    // for test code.  If we ever need this for product code we need to think through synchronization.
-    // See the threading notes at the top of this class.
-    //
-    // Also, since trim() runs asynchronously now, this blocks until any pending trim has completed.
+    // Since trim() runs asynchronously, this blocks until any pending trim has completed.
     long sizeInBytesForTest() {
         synchronized (lock) {
             while (isTrimPending || isTrimInProgress) {
@@ -99,16 +126,9 @@ public final class FileLruCache {
                     // intentional no-op
                 }
             }
+            loadIndexIfNeeded();
+            return indexedSize;
         }
-
-        File[] files = this.directory.listFiles();
-        long total = 0;
-        if (files != null) {
-            for (File file : files) {
-                total += file.length();
-            }
-        }
-        return total;
     }
 
     public InputStream get(String key) throws IOException {
@@ -122,6 +142,11 @@ public final class FileLruCache {
         try {
             input = new FileInputStream(file);
         } catch (IOException e) {
+            synchronized (lock) {
+                // The file may have been lost since it was indexed
+                loadIndexIfNeeded();
+                removeFromIndex(file.getName());
+            }
             return null;
         }
 
@@ -146,10 +171,7 @@ public final class FileLruCache {
                 return null;
             }
 
-            long accessTime = new Date().getTime();
-            Logger.log(LoggingBehavior.CACHE, TAG, "Setting lastModified to " + Long.valueOf(accessTime) + " for "
-                    + file.getName());
-            file.setLastModified(accessTime);
+            recordRead(file);
 
             success = true;
             return buffered;
@@ -221,10 +243,19 @@ public final class FileLruCache {
     }
 
     public void clearCache() {
-        // get the current directory listing of files to delete
-        final File[] filesToDelete = directory.listFiles(BufferFile.excludeBufferFiles());
+        // take the current set of indexed files to delete
+        final List<File> filesToDelete = new ArrayList<File>();
+        synchronized (lock) {
+            loadIndexIfNeeded();
+            for (String name : index.keySet()) {
+                filesToDelete.add(new File(directory, name));
+            }
+            index.clear();
+            indexedSize = 0;
+            rewriteJournal();
+        }
         lastClearCacheTime.set(System.currentTimeMillis());
-        if (filesToDelete != null) {
+        if (!filesToDelete.isEmpty()) {
             Settings.getExecutor().execute(new Runnable() {
                 @Override
                 public void run() {
@@ -238,17 +269,27 @@ public final class FileLruCache {
 
     private void renameToTargetAndTrim(String key, File buffer) {
         final File target = new File(directory, Utility.md5hash(key));
+        synchronized (lock) {
+            // Load before the rename, so that the target is not picked up as an unindexed file
+            loadIndexIfNeeded();
+        }
 
         // This is triggered by close().  By the time close() returns, the file should be cached, so this needs to
         // happen synchronously on this thread.
         //
-        // However, it does not need to be synchronized, since in the race we will just start an unnecesary trim
-        // operation.  Avoiding the cost of holding the lock across the file operation seems worth this cost.
+        // The rename itself does not need to be synchronized, since in the race we will just start an unnecesary
+        // trim operation.  Avoiding the cost of holding the lock across the file operation seems worth this cost.
         if (!buffer.renameTo(target)) {
             buffer.delete();
+            return;
         }
 
-        postTrim();
+        synchronized (lock) {
+            putInIndex(target.getName(), target.length());
+            if (isTrimNeeded()) {
+                postTrim();
+            }
+        }
     }
 
     // Opens an output stream for the key, and creates an input stream wrapper to copy
@@ -277,34 +318,37 @@ public final class FileLruCache {
         }
     }
 
+    // Must be called with lock held
+    private boolean isTrimNeeded() {
+        return (indexedSize > limits.getByteCount()) || (index.size() > limits.getFileCount())
+                || isJournalCompactionNeeded();
+    }
+
     private void trim() {
+        List<File> filesToDelete = new ArrayList<File>();
         synchronized (lock) {
             isTrimPending = false;
             isTrimInProgress = true;
-        }
-        try {
+
             Logger.log(LoggingBehavior.CACHE, TAG, "trim started");
-            PriorityQueue<ModifiedFile> heap = new PriorityQueue<ModifiedFile>();
-            long size = 0;
-            long count = 0;
-            File[] filesToTrim =this.directory.listFiles(BufferFile.excludeBufferFiles());
-            if (filesToTrim != null) {
-                for (File file : filesToTrim) {
-                    ModifiedFile modified = new ModifiedFile(file);
-                    heap.add(modified);
-                    Logger.log(LoggingBehavior.CACHE, TAG, "  trim considering time=" + Long.valueOf(modified.getModified())
-                            + " name=" + modified.getFile().getName());
-
-                    size += file.length();
-                    count++;
-                }
+            loadIndexIfNeeded();
+            Iterator<Map.Entry<String, Long>> iterator = index.entrySet().iterator();
+            while (((indexedSize > limits.getByteCount()) || (index.size() > limits.getFileCount()))
+                    && iterator.hasNext()) {
+                Map.Entry<String, Long> entry = iterator.next();
+                Logger.log(LoggingBehavior.CACHE, TAG, "  trim removing " + entry.getKey());
+                iterator.remove();
+                indexedSize -= entry.getValue();
+                appendToJournal(JOURNAL_REMOVE, entry.getKey());
+                filesToDelete.add(new File(directory, entry.getKey()));
             }
 
-            while ((size > limits.getByteCount()) || (count > limits.getFileCount())) {
-                File file = heap.remove().getFile();
-                Logger.log(LoggingBehavior.CACHE, TAG, "  trim removing " + file.getName());
-                size -= file.length();
-                count--;
+            if (isJournalCompactionNeeded()) {
+                rewriteJournal();
+            }
+        }
+        try {
+            for (File file : filesToDelete) {
                 file.delete();
             }
         } finally {
@@ -315,6 +359,208 @@ public final class FileLruCache {
         }
     }
 
+    private void recordRead(File file) {
+        synchronized (lock) {
+            loadIndexIfNeeded();
+            String name = file.getName();
+            if (index.get(name) != null) {
+                // The get() above also moved it to the most recently used end
+                appendToJournal(JOURNAL_READ, name);
+            } else {
+                // Renamed into place by another process or lost from the journal, so start tracking it
+                putInIndex(name, file.length());
+            }
+            if (isTrimNeeded()) {
+                postTrim();
+            }
+        }
+    }
+
+    // Must be called with lock held
+    private void putInIndex(String name, long size) {
+        Long previousSize = index.put(name, size);
+        if (previousSize != null) {
+            indexedSize -= previousSize;
+        }
+        indexedSize += size;
+        appendToJournal(JOURNAL_PUT, name + " " + size);
+    }
+
+    // Must be called with lock held
+    private void removeFromIndex(String name) {
+        Long size = index.remove(name);
+        if (size != null) {
+            indexedSize -= size;
+            appendToJournal(JOURNAL_REMOVE, name);
+        }
+    }
+
+    // Must be called with lock held
+    private void loadIndexIfNeeded() {
+        if (isIndexLoaded) {
+            return;
+        }
+        isIndexLoaded = true;
+
+        Map<String, File> filesOnDisk = new HashMap<String, File>();
+        File[] files = directory.listFiles(BufferFile.excludeBufferFiles());
+        if (files != null) {
+            for (File file : files) {
+                if (!file.getName().startsWith(JOURNAL_FILE_NAME)) {
+                    filesOnDisk.put(file.getName(), file);
+                }
+            }
+        }
+
+        boolean journalIsClean = readJournal();
+
+        // Drop entries whose file is gone, and pick up files the journal does not know about.  The latter are
+        // treated as least recently used, ordered by their modification time as before.
+        boolean indexChanged = index.keySet().retainAll(filesOnDisk.keySet());
+        List<ModifiedFile> unindexedFiles = new ArrayList<ModifiedFile>();
+        for (Map.Entry<String, File> entry : filesOnDisk.entrySet()) {
+            if (!index.containsKey(entry.getKey())) {
+                unindexedFiles.add(new ModifiedFile(entry.getValue()));
+            }
+        }
+        if (!unindexedFiles.isEmpty()) {
+            ModifiedFile[] sorted = unindexedFiles.toArray(new ModifiedFile[unindexedFiles.size()]);
+            Arrays.sort(sorted);
+            LinkedHashMap<String, Long> journaled = new LinkedHashMap<String, Long>(index);
+            index.clear();
+            for (ModifiedFile modified : sorted) {
+                index.put(modified.getFile().getName(), modified.getFile().length());
+            }
+            index.putAll(journaled);
+            indexChanged = true;
+        }
+
+        indexedSize = 0;
+        for (Long size : index.values()) {
+            indexedSize += size;
+        }
+        Logger.log(LoggingBehavior.CACHE, TAG, "loaded index of " + index.size() + " files, " + indexedSize
+                + " bytes");
+
+        if (!journalIsClean || indexChanged || isJournalCompactionNeeded()) {
+            rewriteJournal();
+        } else {
+            openJournalForAppend();
+        }
+    }
+
+    // Must be called with lock held.  Returns false if the journal was missing or damaged.
+    private boolean readJournal() {
+        File journalFile = new File(directory, JOURNAL_FILE_NAME);
+        if (!journalFile.exists()) {
+            return false;
+        }
+
+        BufferedReader reader = null;
+        int lineCount = 0;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), "US-ASCII"),
+                    Utility.DEFAULT_STREAM_BUFFER_SIZE);
+            if (!JOURNAL_MAGIC.equals(reader.readLine()) || !JOURNAL_VERSION.equals(reader.readLine())) {
+                return false;
+            }
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(" ");
+                if (JOURNAL_PUT.equals(parts[0]) && parts.length == 3) {
+                    index.put(parts[1], Long.parseLong(parts[2]));
+                } else if (JOURNAL_READ.equals(parts[0]) && parts.length == 2) {
+                    index.get(parts[1]);
+                } else if (JOURNAL_REMOVE.equals(parts[0]) && parts.length == 2) {
+                    index.remove(parts[1]);
+                } else {
+                    // Most likely truncated by a crash while appending; keep what was read so far
+                    return false;
+                }
+                lineCount++;
+            }
+            redundantJournalOpCount = lineCount - index.size();
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        } catch (IOException e) {
+            Logger.log(LoggingBehavior.CACHE, Log.WARN, TAG, "Error reading cache journal: " + e);
+            return false;
+        } finally {
+            Utility.closeQuietly(reader);
+        }
+    }
+
+    // Must be called with lock held
+    private void openJournalForAppend() {
+        try {
+            journalWriter = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(new File(directory, JOURNAL_FILE_NAME), true), "US-ASCII"));
+        } catch (IOException e) {
+            Logger.log(LoggingBehavior.CACHE, Log.WARN, TAG, "Error opening cache journal: " + e);
+            journalWriter = null;
+        }
+    }
+
+    // Must be called with lock held
+    private void appendToJournal(String operation, String arguments) {
+        redundantJournalOpCount++;
+        if (journalWriter == null) {
+            // The index stays correct in memory; the journal is rewritten by the next compaction
+            return;
+        }
+        try {
+            journalWriter.write(operation);
+            journalWriter.write(' ');
+            journalWriter.write(arguments);
+            journalWriter.write('\n');
+            journalWriter.flush();
+        } catch (IOException e) {
+            Logger.log(LoggingBehavior.CACHE, Log.WARN, TAG, "Error writing cache journal: " + e);
+            Utility.closeQuietly(journalWriter);
+            journalWriter = null;
+        }
+    }
+
+    // Must be called with lock held
+    private boolean isJournalCompactionNeeded() {
+        return (redundantJournalOpCount >= JOURNAL_COMPACTION_THRESHOLD) && (redundantJournalOpCount >= index.size());
+    }
+
+    // Must be called with lock held.  Writes one PUT per entry, least recently used first.
+    private void rewriteJournal() {
+        Utility.closeQuietly(journalWriter);
+        journalWriter = null;
+
+        File journalFile = new File(directory, JOURNAL_FILE_NAME);
+        File tmpFile = new File(directory, JOURNAL_TMP_FILE_NAME);
+        Writer writer = null;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmpFile), "US-ASCII"),
+                    Utility.DEFAULT_STREAM_BUFFER_SIZE);
+            writer.write(JOURNAL_MAGIC);
+            writer.write('\n');
+            writer.write(JOURNAL_VERSION);
+            writer.write('\n');
+            for (Map.Entry<String, Long> entry : index.entrySet()) {
+                writer.write(JOURNAL_PUT + " " + entry.getKey() + " " + entry.getValue() + "\n");
+            }
+            writer.close();
+            writer = null;
+
+            if (!tmpFile.renameTo(journalFile)) {
+                throw new IOException("Could not rename " + tmpFile.getName());
+            }
+            redundantJournalOpCount = 0;
+            openJournalForAppend();
+        } catch (IOException e) {
+            Logger.log(LoggingBehavior.CACHE, Log.WARN, TAG, "Error rewriting cache journal: " + e);
+            Utility.closeQuietly(writer);
+            tmpFile.delete();
+        }
+    }
+
     private static class BufferFile {
         private static final String FILE_NAME_PREFIX = "buffer";
         private static final FilenameFilter filterExcludeBufferFiles = new FilenameFilter() {
@@ -592,7 +838,7 @@ public final class FileLruCache {
         }
     }
 
-    // Caches the result of lastModified during sort/heap operations
+    // Caches the result of lastModified while ordering files the journal does not know about
     private final static class ModifiedFile implements Comparable<ModifiedFile> {
         private static final int HASH_SEED = 29; // Some random prime number
         private static final int HASH_MULTIPLIER = 37; // Some random prime number
@@ -24,6 +24,7 @@ import android.os.Looper;
 import com.facebook.FacebookException;
 import com.facebook.android.R;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -64,9 +65,18 @@ public class ImageDownloader {
             if (downloaderContext != null) {
                 downloaderContext.request = request;
                 downloaderContext.isCancelled = false;
-                downloaderContext.workItem.moveToFront();
+                if (!request.isPrefetch()) {
+                    downloaderContext.workItem.moveToFront();
+                }
             } else {
-                enqueueCacheRead(request, key, request.isCachedRedirectAllowed());
+                // A decoded bitmap in memory skips the queues entirely. Redirects are not looked up here
+                // since that would mean a disk read on the calling thread.
+                Bitmap bitmap = ImageMemoryCache.get(key.uri, request);
+                if (bitmap != null) {
+                    postResponse(request, null, bitmap, false);
+                } else {
+                    enqueueCacheRead(request, key, request.isCachedRedirectAllowed());
+                }
             }
         }
     }
@@ -106,10 +116,40 @@ public class ImageDownloader {
     }
 
     public static void clearCache(Context context) {
+        ImageMemoryCache.clear();
         ImageResponseCache.clearCache(context);
         UrlRedirectCache.clearCache(context);
     }
 
+    /**
+     * Sets the share of the heap that decoded bitmaps may occupy in memory. 0 disables the memory cache.
+     * @param fraction fraction of Runtime.maxMemory(), between 0 and 1
+     */
+    public static void setMemoryCacheBudget(float fraction) {
+        ImageMemoryCache.setHeapFraction(fraction);
+    }
+
+    /**
+     * Releases decoded bitmaps held in memory according to a ComponentCallbacks2 trim level. This is hooked up
+     * automatically on API 14 and above; on older devices call it from onLowMemory with TRIM_MEMORY_COMPLETE.
+     * @param level the trim level
+     */
+    public static void trimMemoryCache(int level) {
+        ImageMemoryCache.trimMemory(level);
+    }
+
+    public static int getMemoryCacheHitCount() {
+        return ImageMemoryCache.getHitCount();
+    }
+
+    public static int getMemoryCacheMissCount() {
+        return ImageMemoryCache.getMissCount();
+    }
+
+    public static int getMemoryCacheSizeInBytes() {
+        return ImageMemoryCache.getSizeInBytes();
+    }
+
     private static void enqueueCacheRead(ImageRequest request, RequestKey key, boolean allowCachedRedirects) {
         enqueueRequest(
                 request,
@@ -143,7 +183,8 @@ public class ImageDownloader {
             // It is also necessary to hold on to the lock until after the workItem is created, since
             // calls to cancelRequest or prioritizeRequest might come in and expect a registered
             // request to have a workItem available as well.
-            downloaderContext.workItem = workQueue.addActiveWorkItem(workItem);
+            WorkQueue.Priority priority = request.isPrefetch() ? WorkQueue.Priority.PREFETCH : WorkQueue.Priority.VISIBLE;
+            downloaderContext.workItem = workQueue.addActiveWorkItem(workItem, priority, true);
         }
     }
 
@@ -156,43 +197,67 @@ public class ImageDownloader {
         // only reference to it
         DownloaderContext completedRequestContext = removePendingRequest(key);
         if (completedRequestContext != null && !completedRequestContext.isCancelled) {
-            final ImageRequest request = completedRequestContext.request;
-            final ImageRequest.Callback callback = request.getCallback();
-            if (callback != null) {
-                getHandler().post(new Runnable() {
-                    @Override
-                    public void run() {
-                        ImageResponse response = new ImageResponse(
-                                request,
-                                error,
-                                isCachedRedirect,
-                                bitmap);
-                        callback.onCompleted(response);
-                    }
-                });
-            }
+            postResponse(completedRequestContext.request, error, bitmap, isCachedRedirect);
+        }
+    }
+
+    private static void postResponse(
+            final ImageRequest request,
+            final Exception error,
+            final Bitmap bitmap,
+            final boolean isCachedRedirect) {
+        final ImageRequest.Callback callback = request.getCallback();
+        if (callback != null) {
+            getHandler().post(new Runnable() {
+                @Override
+                public void run() {
+                    ImageResponse response = new ImageResponse(
+                            request,
+                            error,
+                            isCachedRedirect,
+                            bitmap);
+                    callback.onCompleted(response);
+                }
+            });
         }
     }
 
     private static void readFromCache(RequestKey key, Context context, boolean allowCachedRedirects) {
+        ImageRequest request = getPendingImageRequest(key);
+        if (request == null) {
+            // Cancelled and removed, nobody is waiting for this image
+            return;
+        }
+
         InputStream cachedStream = null;
+        Bitmap bitmap = null;
         boolean isCachedRedirect = false;
         if (allowCachedRedirects) {
             URI redirectUri = UrlRedirectCache.getRedirectedUri(context, key.uri);
             if (redirectUri != null) {
-                cachedStream = ImageResponseCache.getCachedImageStream(redirectUri, context);
-                isCachedRedirect = cachedStream != null;
+                bitmap = ImageMemoryCache.get(redirectUri, request);
+                if (bitmap == null) {
+                    cachedStream = ImageResponseCache.getCachedImageStream(redirectUri, context);
+                    if (cachedStream != null) {
+                        bitmap = decodeAndCache(context, redirectUri, request, cachedStream);
+                    }
+                }
+                isCachedRedirect = bitmap != null;
             }
         }
 
         if (!isCachedRedirect) {
-            cachedStream = ImageResponseCache.getCachedImageStream(key.uri, context);
+            bitmap = ImageMemoryCache.get(key.uri, request);
+            if (bitmap == null) {
+                cachedStream = ImageResponseCache.getCachedImageStream(key.uri, context);
+                if (cachedStream != null) {
+                    bitmap = decodeAndCache(context, key.uri, request, cachedStream);
+                }
+            }
         }
 
-        if (cachedStream != null) {
+        if (bitmap != null || cachedStream != null) {
             // We were able to find a cached image.
-            Bitmap bitmap = BitmapFactory.decodeStream(cachedStream);
-            Utility.closeQuietly(cachedStream);
             issueResponse(key, null, bitmap, isCachedRedirect);
         } else {
             // Once the old downloader context is removed, we are thread-safe since this is the
@@ -205,6 +270,12 @@ public class ImageDownloader {
     }
 
     private static void download(RequestKey key, Context context) {
+        ImageRequest request = getPendingImageRequest(key);
+        if (request == null) {
+            // Cancelled and removed, nobody is waiting for this image
+            return;
+        }
+
         HttpURLConnection connection = null;
         InputStream stream = null;
         Exception error = null;
@@ -242,7 +313,8 @@ public class ImageDownloader {
                 case HttpURLConnection.HTTP_OK:
                     // image should be available
                     stream = ImageResponseCache.interceptAndCacheImageStream(context, connection);
-                    bitmap = BitmapFactory.decodeStream(stream);
+                    bitmap = decodeBitmap(stream, request);
+                    ImageMemoryCache.put(context, key.uri, request, bitmap);
                     break;
 
                 default:
@@ -277,6 +349,67 @@ public class ImageDownloader {
         }
     }
 
+    private static Bitmap decodeAndCache(Context context, URI uri, ImageRequest request, InputStream stream) {
+        try {
+            Bitmap bitmap = decodeBitmap(stream, request);
+            ImageMemoryCache.put(context, uri, request, bitmap);
+            return bitmap;
+        } catch (IOException e) {
+            // Treat an unreadable cache entry as a miss
+            return null;
+        } finally {
+            Utility.closeQuietly(stream);
+        }
+    }
+
+    static Bitmap decodeBitmap(InputStream stream, ImageRequest request) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        if (request.getBitmapConfig() != null) {
+            options.inPreferredConfig = request.getBitmapConfig();
+        }
+        if (!request.hasTargetSize()) {
+            return BitmapFactory.decodeStream(stream, null, options);
+        }
+
+        // Bounds have to be read before the real decode, so keep the encoded image around. It is
+        // small compared to the full resolution bitmap this avoids allocating.
+        byte[] encoded = readFully(stream);
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(encoded, 0, encoded.length, options);
+        options.inSampleSize = calculateInSampleSize(
+                options.outWidth, options.outHeight, request.getTargetWidth(), request.getTargetHeight());
+        options.inJustDecodeBounds = false;
+        return BitmapFactory.decodeByteArray(encoded, 0, encoded.length, options);
+    }
+
+    // Largest power of two that keeps the decoded image at least as big as the target in every
+    // specified dimension
+    static int calculateInSampleSize(int width, int height, int targetWidth, int targetHeight) {
+        int inSampleSize = 1;
+        if (width <= 0 || height <= 0) {
+            return inSampleSize;
+        }
+        while (fitsTarget(width / (inSampleSize * 2), targetWidth)
+                && fitsTarget(height / (inSampleSize * 2), targetHeight)) {
+            inSampleSize *= 2;
+        }
+        return inSampleSize;
+    }
+
+    private static boolean fitsTarget(int size, int target) {
+        return target == ImageRequest.UNSPECIFIED_DIMENSION ? size > 0 : size >= target;
+    }
+
+    private static byte[] readFully(InputStream stream) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(Utility.DEFAULT_STREAM_BUFFER_SIZE);
+        byte[] buffer = new byte[Utility.DEFAULT_STREAM_BUFFER_SIZE];
+        int bytesRead;
+        while ((bytesRead = stream.read(buffer)) != -1) {
+            outputStream.write(buffer, 0, bytesRead);
+        }
+        return outputStream.toByteArray();
+    }
+
     private static synchronized Handler getHandler() {
         if (handler == null) {
             handler = new Handler(Looper.getMainLooper());
@@ -284,6 +417,13 @@ public class ImageDownloader {
         return handler;
     }
 
+    private static ImageRequest getPendingImageRequest(RequestKey key) {
+        synchronized (pendingRequests) {
+            DownloaderContext downloaderContext = pendingRequests.get(key);
+            return downloaderContext != null ? downloaderContext.request : null;
+        }
+    }
+
     private static DownloaderContext removePendingRequest(RequestKey key) {
         synchronized (pendingRequests) {
             return pendingRequests.remove(key);
@@ -0,0 +1,169 @@
+/**
+ * Copyright 2010-present Facebook.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.internal;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+import com.facebook.LoggingBehavior;
+
+import java.net.URI;
+
+// In-memory tier in front of ImageResponseCache, holding decoded bitmaps so they are not re-read
+// and re-decoded from disk while scrolling.
+class ImageMemoryCache {
+    static final String TAG = ImageMemoryCache.class.getSimpleName();
+
+    static final float DEFAULT_HEAP_FRACTION = 0.125f;
+
+    private static volatile float heapFraction = DEFAULT_HEAP_FRACTION;
+    private static LruCache<String, Bitmap> bitmapCache;
+    private static boolean registeredForTrimCallbacks;
+
+    synchronized static void setHeapFraction(float fraction) {
+        if (fraction < 0 || fraction > 1) {
+            throw new IllegalArgumentException("fraction must be between 0 and 1");
+        }
+        heapFraction = fraction;
+        if (bitmapCache != null) {
+            // LruCache cannot be resized, so start over with the new budget
+            bitmapCache.evictAll();
+            bitmapCache = null;
+        }
+    }
+
+    // Null if the budget leaves no room for a memory tier
+    synchronized static LruCache<String, Bitmap> getCache() {
+        if (bitmapCache == null) {
+            long budget = (long) (Runtime.getRuntime().maxMemory() * heapFraction);
+            if (budget <= 0) {
+                return null;
+            }
+            bitmapCache = new LruCache<String, Bitmap>((int) Math.min(budget, Integer.MAX_VALUE)) {
+                @Override
+                protected int sizeOf(String key, Bitmap bitmap) {
+                    return bitmap.getRowBytes() * bitmap.getHeight();
+                }
+            };
+        }
+        return bitmapCache;
+    }
+
+    // Only URLs that ImageResponseCache would cache are content-addressed, so only those are safe to cache here.
+    static Bitmap get(URI uri, ImageRequest request) {
+        if (uri == null || !ImageResponseCache.isCDNURL(uri)) {
+            return null;
+        }
+        LruCache<String, Bitmap> cache = getCache();
+        return cache != null ? cache.get(getKey(uri, request)) : null;
+    }
+
+    static void put(Context context, URI uri, ImageRequest request, Bitmap bitmap) {
+        if (uri == null || bitmap == null || !ImageResponseCache.isCDNURL(uri)) {
+            return;
+        }
+        LruCache<String, Bitmap> cache = getCache();
+        if (cache == null) {
+            return;
+        }
+        registerForTrimCallbacks(context);
+        cache.put(getKey(uri, request), bitmap);
+    }
+
+    // Downsampled or reconfigured decodes of the same URL are cached as separate variants
+    private static String getKey(URI uri, ImageRequest request) {
+        if (!request.hasTargetSize() && request.getBitmapConfig() == null) {
+            return uri.toString();
+        }
+        return uri.toString() + "#" + request.getTargetWidth() + "x" + request.getTargetHeight()
+                + ":" + request.getBitmapConfig();
+    }
+
+    static void trimMemory(int level) {
+        LruCache<String, Bitmap> cache;
+        synchronized (ImageMemoryCache.class) {
+            cache = bitmapCache;
+        }
+        if (cache == null) {
+            return;
+        }
+
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            // Near the top of the kill list, so give everything back
+            cache.evictAll();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            cache.trimToSize(cache.maxSize() / 2);
+        }
+        Logger.log(LoggingBehavior.CACHE, Log.DEBUG, TAG, "trimMemory(" + level + "), now " + cache.size() + " bytes");
+    }
+
+    static void clear() {
+        LruCache<String, Bitmap> cache;
+        synchronized (ImageMemoryCache.class) {
+            cache = bitmapCache;
+        }
+        if (cache != null) {
+            cache.evictAll();
+        }
+    }
+
+    static int getHitCount() {
+        LruCache<String, Bitmap> cache = getCache();
+        return cache != null ? cache.hitCount() : 0;
+    }
+
+    static int getMissCount() {
+        LruCache<String, Bitmap> cache = getCache();
+        return cache != null ? cache.missCount() : 0;
+    }
+
+    static int getSizeInBytes() {
+        LruCache<String, Bitmap> cache = getCache();
+        return cache != null ? cache.size() : 0;
+    }
+
+    private synchronized static void registerForTrimCallbacks(Context context) {
+        // ComponentCallbacks2 is only available from API 14. On older devices apps can forward
+        // onLowMemory to ImageDownloader.trimMemoryCache themselves.
+        if (registeredForTrimCallbacks || context == null
+                || Build.VERSION.SDK_INT < Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+            return;
+        }
+        context.getApplicationContext().registerComponentCallbacks(new ComponentCallbacks2() {
+            @Override
+            public void onTrimMemory(int level) {
+                trimMemory(level);
+            }
+
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) {
+            }
+
+            @Override
+            public void onLowMemory() {
+                trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+            }
+        });
+        registeredForTrimCallbacks = true;
+    }
+}
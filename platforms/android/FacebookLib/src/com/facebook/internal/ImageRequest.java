@@ -17,6 +17,7 @@
 package com.facebook.internal;
 
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.net.Uri;
 
 import java.net.URI;
@@ -46,7 +47,11 @@ public class ImageRequest {
     private URI imageUri;
     private Callback callback;
     private boolean allowCachedRedirects;
+    private boolean isPrefetch;
     private Object callerTag;
+    private int targetWidth;
+    private int targetHeight;
+    private Bitmap.Config bitmapConfig;
 
     public static URI getProfilePictureUrl(
             String userId,
@@ -83,7 +88,11 @@ public class ImageRequest {
         this.imageUri = builder.imageUrl;
         this.callback = builder.callback;
         this.allowCachedRedirects = builder.allowCachedRedirects;
+        this.isPrefetch = builder.isPrefetch;
         this.callerTag = builder.callerTag == null ? new Object() : builder.callerTag;
+        this.targetWidth = builder.targetWidth;
+        this.targetHeight = builder.targetHeight;
+        this.bitmapConfig = builder.bitmapConfig;
     }
 
     public Context getContext() {
@@ -102,10 +111,30 @@ public class ImageRequest {
         return allowCachedRedirects;
     }
 
+    public boolean isPrefetch() {
+        return isPrefetch;
+    }
+
     public Object getCallerTag() {
         return callerTag;
     }
 
+    public int getTargetWidth() {
+        return targetWidth;
+    }
+
+    public int getTargetHeight() {
+        return targetHeight;
+    }
+
+    public boolean hasTargetSize() {
+        return targetWidth != UNSPECIFIED_DIMENSION || targetHeight != UNSPECIFIED_DIMENSION;
+    }
+
+    public Bitmap.Config getBitmapConfig() {
+        return bitmapConfig;
+    }
+
     public static class Builder {
         // Required
         private Context context;
@@ -114,7 +143,11 @@ public class ImageRequest {
         // Optional
         private Callback callback;
         private boolean allowCachedRedirects;
+        private boolean isPrefetch;
         private Object callerTag;
+        private int targetWidth = UNSPECIFIED_DIMENSION;
+        private int targetHeight = UNSPECIFIED_DIMENSION;
+        private Bitmap.Config bitmapConfig;
 
         public Builder(Context context, URI imageUrl) {
             Validate.notNull(imageUrl, "imageUrl");
@@ -137,6 +170,35 @@ public class ImageRequest {
             return this;
         }
 
+        /**
+         * Marks the image as not yet on screen. It is then only worked on once nothing visible is waiting, until
+         * it is requested again without this flag or passed to ImageDownloader.prioritizeRequest.
+         */
+        public Builder setIsPrefetch(boolean isPrefetch) {
+            this.isPrefetch = isPrefetch;
+            return this;
+        }
+
+        /**
+         * Sets the size, in pixels, that the image will be displayed at. The image is then decoded at
+         * the smallest power-of-two subsample that still covers this size, instead of at full resolution.
+         * Either dimension may be UNSPECIFIED_DIMENSION.
+         */
+        public Builder setTargetSize(int targetWidth, int targetHeight) {
+            this.targetWidth = Math.max(targetWidth, UNSPECIFIED_DIMENSION);
+            this.targetHeight = Math.max(targetHeight, UNSPECIFIED_DIMENSION);
+            return this;
+        }
+
+        /**
+         * Sets the preferred config to decode the image with, e.g. RGB_565 for opaque images to halve
+         * their memory. Null (the default) leaves the choice to BitmapFactory.
+         */
+        public Builder setBitmapConfig(Bitmap.Config bitmapConfig) {
+            this.bitmapConfig = bitmapConfig;
+            return this;
+        }
+
         public ImageRequest build() {
             return new ImageRequest(this);
         }
@@ -81,7 +81,7 @@ class ImageResponseCache {
         return stream;
     }
 
-   private static boolean isCDNURL(URI url) {
+    static boolean isCDNURL(URI url) {
         if (url != null) {
             String uriHost = url.getHost();
 
@@ -16,21 +16,62 @@
 
 package com.facebook.internal;
 
+import android.os.Handler;
+import android.os.Looper;
+import com.facebook.SdkExecutor;
 import com.facebook.Settings;
 
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executor;
-
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Nothing in here takes a lock.  Running slots are claimed by CAS on runningCount, and pending items sit in one
+// lock-free lane per Priority.  Items are never unlinked from a lane: cancel() and setPriority() only flip or
+// re-push the item, and whoever polls it skips anything that is no longer pending.
+//
+// Items below VISIBLE priority are handed to the executor as SdkExecutor.Discardable, so a saturated SdkExecutor
+// may drop them.  A dropped item goes back to the front of its lane and gives up its slot.
 class WorkQueue {
     public static final int DEFAULT_MAX_CONCURRENT = 8;
+    private static final long DISCARD_RETRY_DELAY_MILLIS = 100;
+
+    // Lanes are drained in declaration order
+    enum Priority {
+        VISIBLE,
+        PREFETCH,
+        BACKGROUND
+    }
 
-    private final Object workLock = new Object();
-    private WorkNode pendingJobs;
+    private static final int STATE_PENDING = 0;
+    private static final int STATE_RUNNING = 1;
+    private static final int STATE_CANCELLED = 2;
+
+    private final Lane[] lanes;
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final AtomicInteger runningCount = new AtomicInteger();
 
     private final int maxConcurrent;
     private final Executor executor;
 
-    private WorkNode runningJobs = null;
-    private int runningCount = 0;
+    private final AtomicLong completedCount = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong totalRunNanos = new AtomicLong();
+
+    private final AtomicBoolean isRetryScheduled = new AtomicBoolean();
+    private Handler retryHandler;
+    private final Runnable retryRunnable = new Runnable() {
+        @Override
+        public void run() {
+            isRetryScheduled.set(false);
+            startItem();
+        }
+    };
 
     WorkQueue() {
         this(DEFAULT_MAX_CONCURRENT);
@@ -43,6 +84,11 @@ class WorkQueue {
     WorkQueue(int maxConcurrent, Executor executor) {
         this.maxConcurrent = maxConcurrent;
         this.executor = executor;
+
+        lanes = new Lane[Priority.values().length];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new Lane();
+        }
     }
 
     WorkItem addActiveWorkItem(Runnable callback) {
@@ -50,166 +96,266 @@ class WorkQueue {
     }
 
     WorkItem addActiveWorkItem(Runnable callback, boolean addToFront) {
-        WorkNode node = new WorkNode(callback);
-        synchronized (workLock) {
-            pendingJobs = node.addToList(pendingJobs, addToFront);
-        }
+        return addActiveWorkItem(callback, Priority.VISIBLE, addToFront);
+    }
+
+    WorkItem addActiveWorkItem(Runnable callback, Priority priority, boolean addToFront) {
+        WorkNode node = new WorkNode(callback, priority);
+        lanes[priority.ordinal()].add(node, addToFront);
+        // Counted only once visible in a lane, see startItem()
+        pendingCount.incrementAndGet();
 
         startItem();
         return node;
     }
 
-    void validate() {
-        synchronized (workLock) {
-            // Verify that all running items know they are running, and counts match
-            int count = 0;
-
-            if (runningJobs != null) {
-                WorkNode walk = runningJobs;
-                do {
-                    walk.verify(true);
-                    count++;
-                    walk = walk.getNext();
-                } while (walk != runningJobs);
-            }
+    // Number of items waiting to start
+    int getPendingCount() {
+        return Math.max(pendingCount.get(), 0);
+    }
+
+    int getRunningCount() {
+        return runningCount.get();
+    }
+
+    long getCompletedCount() {
+        return completedCount.get();
+    }
+
+    // Average time completed items spent pending before they started
+    long getAverageWaitMillis() {
+        long completed = completedCount.get();
+        return completed == 0 ? 0 : totalWaitNanos.get() / completed / 1000000;
+    }
+
+    // Average time completed items spent running
+    long getAverageRunMillis() {
+        long completed = completedCount.get();
+        return completed == 0 ? 0 : totalRunNanos.get() / completed / 1000000;
+    }
 
-            assert runningCount == count;
+    void validate() {
+        // Verify that the running count stays within bounds, and that no lane holds an item that is pending
+        // without being counted.  Only meaningful while the queue is quiescent.
+        int running = runningCount.get();
+        assert running >= 0 && running <= maxConcurrent;
+
+        int pending = 0;
+        for (Lane lane : lanes) {
+            pending += lane.countPending();
         }
+        assert pending == pendingCount.get();
     }
 
     private void startItem() {
-        finishItemAndStartNew(null);
-    }
+        while (true) {
+            int running = runningCount.get();
+            if (running >= maxConcurrent) {
+                return;
+            }
+            if (!runningCount.compareAndSet(running, running + 1)) {
+                continue;
+            }
 
-    private void finishItemAndStartNew(WorkNode finished) {
-        WorkNode ready = null;
+            WorkNode ready = claimNext();
+            if (ready != null) {
+                execute(ready);
+                return;
+            }
 
-        synchronized (workLock) {
-            if (finished != null) {
-                runningJobs = finished.removeFromList(runningJobs);
-                runningCount--;
+            runningCount.decrementAndGet();
+            // An item added while this slot was held may have found the queue full and left it to us.  Adders
+            // bump pendingCount before reading runningCount, and we release the slot before reading pendingCount,
+            // so at least one side sees the other.
+            if (pendingCount.get() <= 0) {
+                return;
             }
+        }
+    }
 
-            if (runningCount < maxConcurrent) {
-                ready = pendingJobs; // Head of the pendingJobs queue
-                if (ready != null) {
-                    // The Queue reassignments are necessary since 'ready' might have been
-                    // added / removed from the front of either queue, which changes its
-                    // respective head.
-                    pendingJobs = ready.removeFromList(pendingJobs);
-                    runningJobs = ready.addToList(runningJobs, false);
-                    runningCount++;
-
-                    ready.setIsRunning(true);
+    private WorkNode claimNext() {
+        for (Lane lane : lanes) {
+            WorkNode node;
+            while ((node = lane.poll()) != null) {
+                if (node.claim()) {
+                    return node;
                 }
             }
         }
+        return null;
+    }
 
-        if (ready != null) {
-            execute(ready);
+    private void execute(WorkNode node) {
+        if (node.priority == Priority.VISIBLE) {
+            executor.execute(new NodeRunner(node));
+        } else {
+            executor.execute(new DiscardableNodeRunner(node));
         }
     }
 
-    private void execute(final WorkNode node) {
-        executor.execute(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    node.getCallback().run();
-                } finally {
-                    finishItemAndStartNew(node);
+    // Nothing else may be going on in this queue to pick a dropped item up again, so retry on our own
+    private void scheduleRetry() {
+        if (isRetryScheduled.compareAndSet(false, true)) {
+            synchronized (retryRunnable) {
+                if (retryHandler == null) {
+                    retryHandler = new Handler(Looper.getMainLooper());
                 }
             }
-        });
+            retryHandler.postDelayed(retryRunnable, DISCARD_RETRY_DELAY_MILLIS);
+        }
     }
 
-    private class WorkNode implements WorkItem {
-        private final Runnable callback;
-        private WorkNode next;
-        private WorkNode prev;
-        private boolean isRunning;
+    private class NodeRunner implements Runnable {
+        final WorkNode node;
 
-        WorkNode(Runnable callback) {
-            this.callback = callback;
+        NodeRunner(WorkNode node) {
+            this.node = node;
         }
 
         @Override
-        public boolean cancel() {
-            synchronized (workLock) {
-                if (!isRunning()) {
-                    pendingJobs = removeFromList(pendingJobs);
-                    return true;
-                }
+        public void run() {
+            long startNanos = System.nanoTime();
+            totalWaitNanos.addAndGet(startNanos - node.enqueueNanos);
+            try {
+                node.getCallback().run();
+            } finally {
+                totalRunNanos.addAndGet(System.nanoTime() - startNanos);
+                completedCount.incrementAndGet();
+                runningCount.decrementAndGet();
+                startItem();
             }
+        }
+    }
 
-            return false;
+    private class DiscardableNodeRunner extends NodeRunner implements SdkExecutor.Discardable {
+        DiscardableNodeRunner(WorkNode node) {
+            super(node);
         }
 
         @Override
-        public void moveToFront() {
-            synchronized (workLock) {
-                if (!isRunning()) {
-                    pendingJobs = removeFromList(pendingJobs);
-                    pendingJobs = addToList(pendingJobs, true);
+        public void onDiscarded() {
+            node.requeue();
+            runningCount.decrementAndGet();
+            scheduleRetry();
+        }
+    }
+
+    // A lane behaves like a deque that only ever has items added at either end and taken from the front.  Items
+    // added to the front always come out before items added to the back, so it is a Treiber stack for the front
+    // followed by a queue for the back.
+    private static final class Lane {
+        private final AtomicReference<Cell> front = new AtomicReference<Cell>();
+        private final ConcurrentLinkedQueue<WorkNode> back = new ConcurrentLinkedQueue<WorkNode>();
+
+        void add(WorkNode node, boolean addToFront) {
+            if (!addToFront) {
+                back.offer(node);
+                return;
+            }
+
+            Cell cell = new Cell(node);
+            do {
+                cell.next = front.get();
+            } while (!front.compareAndSet(cell.next, cell));
+        }
+
+        WorkNode poll() {
+            Cell head;
+            while ((head = front.get()) != null) {
+                if (front.compareAndSet(head, head.next)) {
+                    return head.node;
                 }
             }
+            return back.poll();
         }
 
-        @Override
-        public boolean isRunning() {
-            return isRunning;
+        // Items re-pushed by setPriority() may appear more than once, so count distinct pending nodes
+        int countPending() {
+            Set<WorkNode> pending = new HashSet<WorkNode>();
+            for (Cell walk = front.get(); walk != null; walk = walk.next) {
+                if (walk.node.isPending()) {
+                    pending.add(walk.node);
+                }
+            }
+            Iterator<WorkNode> iterator = back.iterator();
+            while (iterator.hasNext()) {
+                WorkNode node = iterator.next();
+                if (node.isPending()) {
+                    pending.add(node);
+                }
+            }
+            return pending.size();
         }
+    }
 
-        Runnable getCallback() {
-            return callback;
+    private static final class Cell {
+        final WorkNode node;
+        Cell next;
+
+        Cell(WorkNode node) {
+            this.node = node;
         }
+    }
+
+    private class WorkNode implements WorkItem {
+        private final Runnable callback;
+        private final AtomicInteger state = new AtomicInteger(STATE_PENDING);
+        final long enqueueNanos = System.nanoTime();
+        volatile Priority priority;
 
-        WorkNode getNext() {
-            return next;
+        WorkNode(Runnable callback, Priority priority) {
+            this.callback = callback;
+            this.priority = priority;
         }
 
-        void setIsRunning(boolean isRunning) {
-            this.isRunning = isRunning;
+        @Override
+        public boolean cancel() {
+            if (state.compareAndSet(STATE_PENDING, STATE_CANCELLED)) {
+                pendingCount.decrementAndGet();
+            }
+            return !isRunning();
         }
 
-        WorkNode addToList(WorkNode list, boolean addToFront) {
-            assert next == null;
-            assert prev == null;
+        @Override
+        public void moveToFront() {
+            setPriority(Priority.VISIBLE);
+        }
 
-            if (list == null) {
-                list = next = prev = this;
-            } else {
-                next = list;
-                prev = list.prev;
-                next.prev = prev.next = this;
+        @Override
+        public void setPriority(Priority priority) {
+            if (isPending()) {
+                // The stale entry left in the old lane is skipped once this one has been claimed
+                this.priority = priority;
+                lanes[priority.ordinal()].add(this, true);
             }
+        }
 
-            return addToFront ? this : list;
+        @Override
+        public boolean isRunning() {
+            return state.get() == STATE_RUNNING;
         }
 
-        WorkNode removeFromList(WorkNode list) {
-            assert next != null;
-            assert prev != null;
+        boolean isPending() {
+            return state.get() == STATE_PENDING;
+        }
 
-            if (list == this) {
-                if (next == this) {
-                    list = null;
-                } else {
-                    list = next;
-                }
+        boolean claim() {
+            if (state.compareAndSet(STATE_PENDING, STATE_RUNNING)) {
+                pendingCount.decrementAndGet();
+                return true;
             }
+            return false;
+        }
 
-            next.prev = prev;
-            prev.next = next;
-            next = prev = null;
-
-            return list;
+        // Returns a claimed item that was never run to the front of its lane
+        void requeue() {
+            state.set(STATE_PENDING);
+            lanes[priority.ordinal()].add(this, true);
+            pendingCount.incrementAndGet();
         }
 
-        void verify(boolean shouldBeRunning) {
-            assert prev.next == this;
-            assert next.prev == this;
-            assert isRunning() == shouldBeRunning;
+        Runnable getCallback() {
+            return callback;
         }
     }
 
@@ -217,5 +363,7 @@ class WorkQueue {
         boolean cancel();
         boolean isRunning();
         void moveToFront();
+        // Moves a pending item to the front of the given lane
+        void setPriority(Priority priority);
     }
 }
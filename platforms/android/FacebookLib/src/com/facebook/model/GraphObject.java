@@ -109,7 +109,9 @@ public interface GraphObject {
      * Collection, List, and GraphObjectList.
      */
     final class Factory {
-        private static final HashSet<Class<?>> verifiedGraphObjectClasses = new HashSet<Class<?>>();
+        // Accessor tables for the interfaces that have been verified, see verifyCanProxyClass
+        private static final HashMap<Class<?>, Map<Method, PropertyAccessor>> accessorTables =
+                new HashMap<Class<?>, Map<Method, PropertyAccessor>>();
         private static final SimpleDateFormat[] dateFormats = new SimpleDateFormat[] {
                 new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ", Locale.US),
                 new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss", Locale.US), new SimpleDateFormat("yyyy-MM-dd", Locale.US), };
@@ -213,10 +215,10 @@ public interface GraphObject {
         }
 
         private static <T extends GraphObject> T createGraphObjectProxy(Class<T> graphObjectClass, JSONObject state) {
-            verifyCanProxyClass(graphObjectClass);
+            Map<Method, PropertyAccessor> accessors = verifyCanProxyClass(graphObjectClass);
 
             Class<?>[] interfaces = new Class<?>[] { graphObjectClass };
-            GraphObjectProxy graphObjectProxy = new GraphObjectProxy(state, graphObjectClass);
+            GraphObjectProxy graphObjectProxy = new GraphObjectProxy(state, graphObjectClass, accessors);
 
             @SuppressWarnings("unchecked")
             T graphObject = (T) Proxy.newProxyInstance(GraphObject.class.getClassLoader(), interfaces, graphObjectProxy);
@@ -226,7 +228,8 @@ public interface GraphObject {
 
         private static Map<String, Object> createGraphObjectProxyForMap(JSONObject state) {
             Class<?>[] interfaces = new Class<?>[]{Map.class};
-            GraphObjectProxy graphObjectProxy = new GraphObjectProxy(state, Map.class);
+            GraphObjectProxy graphObjectProxy = new GraphObjectProxy(state, Map.class,
+                    Collections.<Method, PropertyAccessor>emptyMap());
 
             @SuppressWarnings("unchecked")
             Map<String, Object> graphObject = (Map<String, Object>) Proxy
@@ -235,18 +238,25 @@ public interface GraphObject {
             return graphObject;
         }
 
-        private static synchronized <T extends GraphObject> boolean hasClassBeenVerified(Class<T> graphObjectClass) {
-            return verifiedGraphObjectClasses.contains(graphObjectClass);
+        private static synchronized <T extends GraphObject> Map<Method, PropertyAccessor> getAccessorTable(
+                Class<T> graphObjectClass) {
+            return accessorTables.get(graphObjectClass);
         }
 
-        private static synchronized <T extends GraphObject> void recordClassHasBeenVerified(Class<T> graphObjectClass) {
-            verifiedGraphObjectClasses.add(graphObjectClass);
+        private static synchronized <T extends GraphObject> void recordClassHasBeenVerified(Class<T> graphObjectClass,
+                Map<Method, PropertyAccessor> accessors) {
+            accessorTables.put(graphObjectClass, accessors);
         }
 
-        private static <T extends GraphObject> void verifyCanProxyClass(Class<T> graphObjectClass) {
-            if (hasClassBeenVerified(graphObjectClass)) {
-                return;
+        // Returns the accessor for every getter and setter of the class, which is built the first time the class
+        // is verified and never changes afterwards.
+        private static <T extends GraphObject> Map<Method, PropertyAccessor> verifyCanProxyClass(
+                Class<T> graphObjectClass) {
+            Map<Method, PropertyAccessor> accessors = getAccessorTable(graphObjectClass);
+            if (accessors != null) {
+                return accessors;
             }
+            accessors = new HashMap<Method, PropertyAccessor>();
 
             if (!graphObjectClass.isInterface()) {
                 throw new FacebookGraphObjectException("Factory can only wrap interfaces, not class: "
@@ -268,10 +278,12 @@ public interface GraphObject {
                         // If a property override is present, it MUST be valid. We don't fallback
                         // to using the method name
                         if (!Utility.isNullOrEmpty(method.getAnnotation(PropertyName.class).value())) {
+                            accessors.put(method, new PropertyAccessor(method));
                             continue;
                         }
                     } else if (methodName.startsWith("set") && methodName.length() > 3) {
                         // Looks like a valid setter
+                        accessors.put(method, new PropertyAccessor(method));
                         continue;
                     }
                 } else if (parameterCount == 0 && returnType != Void.TYPE) {
@@ -279,10 +291,12 @@ public interface GraphObject {
                         // If a property override is present, it MUST be valid. We don't fallback
                         // to using the method name
                         if (!Utility.isNullOrEmpty(method.getAnnotation(PropertyName.class).value())) {
+                            accessors.put(method, new PropertyAccessor(method));
                             continue;
                         }
                     } else if (methodName.startsWith("get") && methodName.length() > 3) {
                         // Looks like a valid getter
+                        accessors.put(method, new PropertyAccessor(method));
                         continue;
                     }
                 }
@@ -290,7 +304,8 @@ public interface GraphObject {
                 throw new FacebookGraphObjectException("Factory can't proxy method: " + method.toString());
             }
 
-            recordClassHasBeenVerified(graphObjectClass);
+            recordClassHasBeenVerified(graphObjectClass, accessors);
+            return accessors;
         }
 
         // If expectedType is a generic type, expectedTypeAsParameterizedType must be provided in order to determine
@@ -433,6 +448,34 @@ public interface GraphObject {
             return obj;
         }
 
+        // Everything needed to run a getter or setter that can be worked out from its Method alone, so that the
+        // annotation lookups, name mangling and generic type inspection happen once per method instead of per call.
+        private static final class PropertyAccessor {
+            final String key;
+            final boolean isGetter;
+            final boolean isSetter;
+            final Class<?> expectedType;
+            final ParameterizedType parameterizedType;
+            final CreateGraphObject createGraphObject;
+
+            PropertyAccessor(Method method) {
+                PropertyName propertyNameOverride = method.getAnnotation(PropertyName.class);
+                key = propertyNameOverride != null ? propertyNameOverride.value() :
+                        convertCamelCaseToLowercaseWithUnderscores(method.getName().substring(3));
+
+                int parameterCount = method.getParameterTypes().length;
+                isGetter = parameterCount == 0;
+                isSetter = parameterCount == 1;
+
+                expectedType = method.getReturnType();
+                Type genericReturnType = method.getGenericReturnType();
+                parameterizedType = (genericReturnType instanceof ParameterizedType) ?
+                        (ParameterizedType) genericReturnType : null;
+
+                createGraphObject = method.getAnnotation(CreateGraphObject.class);
+            }
+        }
+
         private abstract static class ProxyBase<STATE> implements InvocationHandler {
             // Pre-loaded Method objects for the methods in java.lang.Object
             private static final String EQUALS_METHOD = "equals";
@@ -498,10 +541,13 @@ public interface GraphObject {
             private static final String GETINNERJSONOBJECT_METHOD = "getInnerJSONObject";
 
             private final Class<?> graphObjectClass;
+            private final Map<Method, PropertyAccessor> accessors;
 
-            public GraphObjectProxy(JSONObject state, Class<?> graphObjectClass) {
+            public GraphObjectProxy(JSONObject state, Class<?> graphObjectClass,
+                    Map<Method, PropertyAccessor> accessors) {
                 super(state);
                 this.graphObjectClass = graphObjectClass;
+                this.accessors = accessors;
             }
 
             @Override
@@ -652,38 +698,24 @@ public interface GraphObject {
             }
 
             private final Object proxyGraphObjectGettersAndSetters(Method method, Object[] args) throws JSONException {
-                String methodName = method.getName();
-                int parameterCount = method.getParameterTypes().length;
-                PropertyName propertyNameOverride = method.getAnnotation(PropertyName.class);
-
-                String key = propertyNameOverride != null ? propertyNameOverride.value() :
-                        convertCamelCaseToLowercaseWithUnderscores(methodName.substring(3));
+                // ASSUMPTION: The GraphObject-derived class has been verified, so its getters and setters all have
+                // an accessor already.
+                PropertyAccessor accessor = accessors.get(method);
+                if (accessor == null) {
+                    accessor = new PropertyAccessor(method);
+                }
 
                 // If it's a get or a set on a GraphObject-derived class, we can handle it.
-                if (parameterCount == 0) {
-                    // Has to be a getter. ASSUMPTION: The GraphObject-derived class has been verified
-                    Object value = this.state.opt(key);
-
-                    Class<?> expectedType = method.getReturnType();
-
-                    Type genericReturnType = method.getGenericReturnType();
-                    ParameterizedType parameterizedReturnType = null;
-                    if (genericReturnType instanceof ParameterizedType) {
-                        parameterizedReturnType = (ParameterizedType) genericReturnType;
-                    }
-
-                    value = coerceValueToExpectedType(value, expectedType, parameterizedReturnType);
-
-                    return value;
-                } else if (parameterCount == 1) {
-                    // Has to be a setter. ASSUMPTION: The GraphObject-derived class has been verified
-                    CreateGraphObject createGraphObjectAnnotation = method.getAnnotation(CreateGraphObject.class);
-                    Object value = createGraphObjectsFromParameters(createGraphObjectAnnotation, args[0]);
+                if (accessor.isGetter) {
+                    Object value = this.state.opt(accessor.key);
+                    return coerceValueToExpectedType(value, accessor.expectedType, accessor.parameterizedType);
+                } else if (accessor.isSetter) {
+                    Object value = createGraphObjectsFromParameters(accessor.createGraphObject, args[0]);
 
                     // If this is a wrapped object, store the underlying JSONObject instead, in order to serialize
                     // correctly.
                     value = getUnderlyingJSONObject(value);
-                    this.state.putOpt(key, value);
+                    this.state.putOpt(accessor.key, value);
                     return null;
                 }
 
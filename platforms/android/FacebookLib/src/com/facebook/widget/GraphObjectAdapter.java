@@ -64,6 +64,7 @@ class GraphObjectAdapter<T extends GraphObject> extends BaseAdapter implements S
     private Map<String, ImageResponse> prefetchedPictureCache = new HashMap<String, ImageResponse>();
     private ArrayList<String> prefetchedProfilePictureIds = new ArrayList<String>();
     private OnErrorListener onErrorListener;
+    private ViewGroup.LayoutParams pictureLayoutParams;
 
     public interface DataNeededListener {
         public void onDataNeeded();
@@ -435,6 +436,7 @@ class GraphObjectAdapter<T extends GraphObject> extends BaseAdapter implements S
 
         // Note: these dimensions are in pixels, not dips
         ViewGroup.LayoutParams layoutParams = picture.getLayoutParams();
+        pictureLayoutParams = layoutParams;
         return String.format(Locale.US, "picture.height(%d).width(%d)", layoutParams.height, layoutParams.width);
     }
 
@@ -747,7 +749,14 @@ class GraphObjectAdapter<T extends GraphObject> extends BaseAdapter implements S
                 imageView.setImageResource(getDefaultPicture());
             }
 
+            ViewGroup.LayoutParams layoutParams = getPictureLayoutParams();
             ImageRequest.Builder builder = new ImageRequest.Builder(context.getApplicationContext(), pictureURI)
+                    .setTargetSize(
+                            layoutParams != null ? layoutParams.width : ImageRequest.UNSPECIFIED_DIMENSION,
+                            layoutParams != null ? layoutParams.height : ImageRequest.UNSPECIFIED_DIMENSION)
+                    // Profile pictures are opaque JPEGs, so there is no alpha channel to lose
+                    .setBitmapConfig(Bitmap.Config.RGB_565)
+                    .setIsPrefetch(prefetching)
                     .setCallerTag(this)
                     .setCallback(
                             new ImageRequest.Callback() {
@@ -764,6 +773,17 @@ class GraphObjectAdapter<T extends GraphObject> extends BaseAdapter implements S
         }
     }
 
+    private ViewGroup.LayoutParams getPictureLayoutParams() {
+        if (pictureLayoutParams == null) {
+            View view = createGraphObjectView(null);
+            ImageView picture = (ImageView) view.findViewById(R.id.com_facebook_picker_image);
+            if (picture != null) {
+                pictureLayoutParams = picture.getLayoutParams();
+            }
+        }
+        return pictureLayoutParams;
+    }
+
     private void callOnErrorListener(Exception exception) {
         if (onErrorListener != null) {
             if (!(exception instanceof FacebookException)) {
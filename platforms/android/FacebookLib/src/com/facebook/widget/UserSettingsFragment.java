@@ -413,14 +413,14 @@ public class UserSettingsFragment extends FacebookFragment {
     private ImageRequest getImageRequest() {
         ImageRequest request = null;
         try {
+            int width = getResources().getDimensionPixelSize(R.dimen.com_facebook_usersettingsfragment_profile_picture_width);
+            int height = getResources().getDimensionPixelSize(R.dimen.com_facebook_usersettingsfragment_profile_picture_height);
             ImageRequest.Builder requestBuilder = new ImageRequest.Builder(
                     getActivity(),
-                    ImageRequest.getProfilePictureUrl(
-                            user.getId(),
-                            getResources().getDimensionPixelSize(R.dimen.com_facebook_usersettingsfragment_profile_picture_width),
-                            getResources().getDimensionPixelSize(R.dimen.com_facebook_usersettingsfragment_profile_picture_height)));
+                    ImageRequest.getProfilePictureUrl(user.getId(), width, height));
 
-            request = requestBuilder.setCallerTag(this)
+            request = requestBuilder.setTargetSize(width, height)
+                    .setCallerTag(this)
                     .setCallback(
                             new ImageRequest.Callback() {
                                 @Override
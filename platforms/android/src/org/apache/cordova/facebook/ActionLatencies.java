@@ -0,0 +1,72 @@
+package org.apache.cordova.facebook;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/*
+ * Histograms of how long plugin actions take, from the bridge handing them over to the action
+ * returning, so that waiting for an executor counts as well as the work itself
+ */
+class ActionLatencies {
+
+    // Upper bounds of the buckets in milliseconds, doubling each time, plus one bucket for anything slower
+    private static final long[] BUCKET_BOUNDS = { 1, 2, 4, 8, 16, 32, 64, 128, 256, 512, 1024 };
+
+    private static class Histogram {
+        final long[] counts = new long[BUCKET_BOUNDS.length + 1];
+        long total;
+        long max;
+
+        synchronized void record(long millis) {
+            int bucket = 0;
+            while (bucket < BUCKET_BOUNDS.length && millis > BUCKET_BOUNDS[bucket]) {
+                bucket++;
+            }
+            counts[bucket]++;
+            total += millis;
+            max = Math.max(max, millis);
+        }
+
+        synchronized JSONObject toJSON() throws JSONException {
+            long count = 0;
+            JSONObject buckets = new JSONObject();
+            for (int i = 0; i < counts.length; i++) {
+                count += counts[i];
+                buckets.put(i < BUCKET_BOUNDS.length ? "<=" + BUCKET_BOUNDS[i] : ">" + BUCKET_BOUNDS[i - 1], counts[i]);
+            }
+            JSONObject json = new JSONObject();
+            json.put("count", count);
+            json.put("meanMillis", count > 0 ? total / count : 0);
+            json.put("maxMillis", max);
+            json.put("buckets", buckets);
+            return json;
+        }
+    }
+
+    private final Map<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+
+    void record(String action, long millis) {
+        Histogram histogram = histograms.get(action);
+        if (histogram == null) {
+            synchronized (histograms) {
+                histogram = histograms.get(action);
+                if (histogram == null) {
+                    histogram = new Histogram();
+                    histograms.put(action, histogram);
+                }
+            }
+        }
+        histogram.record(millis);
+    }
+
+    JSONObject toJSON() throws JSONException {
+        JSONObject json = new JSONObject();
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            json.put(entry.getKey(), entry.getValue().toJSON());
+        }
+        return json;
+    }
+}
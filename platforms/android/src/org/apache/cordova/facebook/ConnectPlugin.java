@@ -1,7 +1,11 @@
 package org.apache.cordova.facebook;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.math.BigDecimal;
+import java.net.HttpURLConnection;
 import java.net.URLDecoder;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -10,7 +14,14 @@ import java.util.Date;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
 
 import org.apache.cordova.CallbackContext;
 import org.apache.cordova.CordovaPlugin;
@@ -20,9 +31,13 @@ import org.apache.cordova.CordovaInterface;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONTokener;
 
 import android.content.Intent;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.facebook.AppEventsLogger;
@@ -34,9 +49,11 @@ import com.facebook.FacebookRequestError;
 import com.facebook.FacebookServiceException;
 import com.facebook.Request;
 import com.facebook.Request.GraphUserCallback;
+import com.facebook.RequestBatch;
 import com.facebook.Response;
 import com.facebook.Session;
 import com.facebook.SessionState;
+import com.facebook.Settings;
 import com.facebook.UiLifecycleHelper;
 import com.facebook.model.GraphObject;
 import com.facebook.model.GraphUser;
@@ -58,36 +75,130 @@ public class ConnectPlugin extends CordovaPlugin {
         }
     };
     private final String TAG = "ConnectPlugin";
+    // config.xml preferences for coalescing graphApi calls into batch requests
+    private static final String GRAPH_BATCH_WINDOW_PREFERENCE = "FacebookGraphBatchWindow";
+    private static final String GRAPH_BATCH_SIZE_PREFERENCE = "FacebookGraphBatchSize";
+    // config.xml preferences for the time to live of cached graphApi responses, in seconds
+    private static final String GRAPH_CACHE_TTL_PREFERENCE = "FacebookGraphCacheTTL";
+    private static final String GRAPH_CACHE_PATH_TTLS_PREFERENCE = "FacebookGraphCachePathTTLs";
+    private static final int DEFAULT_GRAPH_CACHE_TTL = 300;
+    // config.xml preference for connecting to the Graph API before the first call needs it
+    private static final String GRAPH_PREWARM_PREFERENCE = "FacebookGraphPrewarm";
+    // config.xml preference for restoring the session off the UI thread while the app starts
+    private static final String ASYNC_INIT_PREFERENCE = "FacebookAsyncInit";
+    // config.xml preference for sending Graph requests over cordova-android's OkHttp with cached DNS lookups
+    private static final String GRAPH_DNS_CACHE_PREFERENCE = "FacebookGraphDnsCache";
+    // graphApi option asking for the raw response body as an ArrayBuffer
+    private static final String RESPONSE_TYPE_ARRAYBUFFER = "arraybuffer";
+    // Progress updates for a graphApi call are sent at most this often
+    private static final long PROGRESS_INTERVAL_MILLIS = 100;
+    private static final int CANCELLED_ERROR_CODE = 4201;
 
     private AppEventsLogger logger;
     private String applicationId = null;
     private CallbackContext loginContext = null;
     private CallbackContext showDialogContext = null;
-    private CallbackContext graphContext = null;
     private Bundle paramBundle;
     private String method;
-    private String graphPath;
-    private String userID;
+    // In-flight graphApi calls, keyed by the Cordova callback id of each call
+    private final Map<String, GraphCall> graphCalls = new ConcurrentHashMap<String, GraphCall>();
+    // graphApi calls waiting on new permissions, in the order they asked; the session takes one permission
+    // request at a time, so only the first one's is shown and the others wait their turn
+    private final List<GraphCall> permissionWaiters = new ArrayList<GraphCall>();
+    private boolean permissionRequestPending = false;
+    private GraphRequestBatcher graphBatcher = null;
+    private GraphResponseCache graphCache = null;
+    private final GraphRequestDeduplicator graphDeduplicator = new GraphRequestDeduplicator();
+    private GraphConnectionWarmer graphWarmer = null;
+    private boolean prewarmGraphConnection = false;
+    private volatile String userID;
     private UiLifecycleHelper uiHelper;
     private boolean trackingPendingCall = false;
+    // Restores the logger, the session and the graphApi helpers; actions wait until it has run
+    private FutureTask<Void> initialization;
+    // Executors the actions are dispatched to, see getActionExecutor
+    private final ExecutorService eventExecutor = Executors.newSingleThreadExecutor();
+    private final Executor uiExecutor = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            cordova.getActivity().runOnUiThread(runnable);
+        }
+    };
+    private final Executor bridgeExecutor = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            runnable.run();
+        }
+    };
+    private final ActionLatencies actionLatencies = new ActionLatencies();
+    // Requests are sent from the main thread, see executeOnMainThread
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
 
     @Override
-    public void initialize(CordovaInterface cordova, CordovaWebView webView) {
+    public void initialize(final CordovaInterface cordova, final CordovaWebView webView) {
         //Initialize UiLifecycleHelper
         uiHelper = new UiLifecycleHelper(cordova.getActivity(), null);
 
+        if (Boolean.parseBoolean(webView.getProperty(GRAPH_DNS_CACHE_PREFERENCE, "false"))) {
+            // Left to the default connections if this cordova-android's OkHttp cannot take a Dns
+            Settings.ConnectionFactory connectionFactory = OkHttpConnectionFactory.create(new GraphDnsCache(cordova.getThreadPool()));
+            if (connectionFactory != null) {
+                Settings.setConnectionFactory(connectionFactory);
+            }
+        }
+        graphWarmer = new GraphConnectionWarmer(cordova.getThreadPool());
+        prewarmGraphConnection = Boolean.parseBoolean(webView.getProperty(GRAPH_PREWARM_PREFERENCE, "false"));
+
+        // Set up the activity result callback to this class
+        cordova.setActivityResultCallback(this);
+
+        initialization = new FutureTask<Void>(new Runnable() {
+            @Override
+            public void run() {
+                long start = SystemClock.elapsedRealtime();
+                restoreState(cordova, webView);
+                Log.d(TAG, "Restored Facebook state in " + (SystemClock.elapsedRealtime() - start) + " ms");
+            }
+        }, null);
+        if (Boolean.parseBoolean(webView.getProperty(ASYNC_INIT_PREFERENCE, "false"))) {
+            // Loading the token and the app events state reads storage, which would hold up the first frame
+            cordova.getThreadPool().execute(initialization);
+        } else {
+            initialization.run();
+        }
+        super.initialize(cordova, webView);
+    }
+
+    /*
+     * The part of initialize that does not need the UI thread
+     */
+    private void restoreState(final CordovaInterface cordova, CordovaWebView webView) {
         // Init logger
         logger = AppEventsLogger.newLogger(cordova.getActivity());
 
         int appResId = cordova.getActivity().getResources().getIdentifier("fb_app_id", "string", cordova.getActivity().getPackageName());
         applicationId = cordova.getActivity().getString(appResId);
 
-        // Set up the activity result callback to this class
-        cordova.setActivityResultCallback(this);
+        // Opt-in coalescing of graphApi calls, off unless a batch window is configured
+        int batchWindow = parseIntPreference(webView, GRAPH_BATCH_WINDOW_PREFERENCE, 0);
+        if (batchWindow > 0) {
+            int batchSize = parseIntPreference(webView, GRAPH_BATCH_SIZE_PREFERENCE, Request.MAXIMUM_BATCH_SIZE);
+            // Graph calls carry their own access token, so the batch needs the app ID
+            Request.setDefaultBatchApplicationId(applicationId);
+            graphBatcher = new GraphRequestBatcher(batchWindow, batchSize);
+        }
+
+        graphCache = new GraphResponseCache(cordova.getActivity().getApplicationContext(),
+                parseIntPreference(webView, GRAPH_CACHE_TTL_PREFERENCE, DEFAULT_GRAPH_CACHE_TTL),
+                webView.getProperty(GRAPH_CACHE_PATH_TTLS_PREFERENCE, null));
 
         // Open a session if we have one cached
-        Session session = new Session.Builder(cordova.getActivity()).setApplicationId(applicationId).build();
+        final Session session = new Session.Builder(cordova.getActivity()).setApplicationId(applicationId).build();
         if (session.getState() == SessionState.CREATED_TOKEN_LOADED) {
+            if (prewarmGraphConnection) {
+                // There is a user, so Graph calls are coming
+                graphWarmer.warmUpAsync();
+            }
             Session.setActiveSession(session);
             // - Create the request
             Session.OpenRequest openRequest = new Session.OpenRequest(cordova.getActivity());
@@ -103,16 +214,41 @@ public class ConnectPlugin extends CordovaPlugin {
 
         // If we have a valid open session, get user's info
         if (checkActiveSession(session)) {
-            // Call this method to initialize the session state info
-            onSessionStateChange(session.getState(), null);
+            // Call this method to initialize the session state info, on the UI thread like the session's own callbacks
+            cordova.getActivity().runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    onSessionStateChange(session.getState(), null);
+                }
+            });
+        }
+    }
+
+    /*
+     * Waits for initialize to finish restoring state if it was left to a background thread
+     */
+    private void awaitInitialization() {
+        try {
+            initialization.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new FacebookException(cause);
         }
-        super.initialize(cordova, webView);
     }
 
     @Override
     public void onResume(boolean multitasking) {
         super.onResume(multitasking);
         uiHelper.onResume();
+        if (prewarmGraphConnection && checkActiveSession(Session.getActiveSession())) {
+            // The pooled connection may have been closed while the app was in the background
+            graphWarmer.warmUpAsync();
+        }
         // Developers can observe how frequently users activate their app by logging an app activation event.
         AppEventsLogger.activateApp(cordova.getActivity());
     }
@@ -129,6 +265,8 @@ public class ConnectPlugin extends CordovaPlugin {
     public void onDestroy() {
         super.onDestroy();
         uiHelper.onDestroy();
+        // Events already queued are still logged
+        eventExecutor.shutdown();
     }
 
     @Override
@@ -159,8 +297,81 @@ public class ConnectPlugin extends CordovaPlugin {
     }
 
     @Override
-    public boolean execute(String action, JSONArray args, CallbackContext callbackContext) throws JSONException {
+    public boolean execute(final String action, final JSONArray args, final CallbackContext callbackContext) throws JSONException {
+        Executor executor = getActionExecutor(action);
+        if (executor == null) {
+            return false;
+        }
+        if (action.equals("graphApi")) {
+            // Registered before dispatching, so that a cancel() that overtakes the call still finds it
+            GraphCall graphCall = new GraphCall(callbackContext, args.getString(0), args.optJSONObject(2));
+            graphCalls.put(graphCall.id, graphCall);
+        }
+
+        final long dispatchedAt = SystemClock.elapsedRealtime();
+        final Runnable runAction = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (!action.equals("cancel")) {
+                        // cancel runs on the bridge thread, and only needs the calls it cancels, which have waited already
+                        awaitInitialization();
+                    }
+                    executeAction(action, args, callbackContext);
+                } catch (JSONException e) {
+                    // What PluginManager does when execute throws
+                    callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.JSON_EXCEPTION));
+                } catch (RuntimeException e) {
+                    // Off the bridge nothing else would answer the call, and an executor thread would be lost
+                    Log.e(TAG, "Error in " + action, e);
+                    graphCalls.remove(callbackContext.getCallbackId());
+                    callbackContext.error(getErrorResponse(e, "Facebook error: " + e.getMessage(), INVALID_ERROR_CODE));
+                } finally {
+                    actionLatencies.record(action, SystemClock.elapsedRealtime() - dispatchedAt);
+                }
+            }
+        };
+        if (executor == uiExecutor && !initialization.isDone()) {
+            // The UI thread must not block on a restore left to the background, so that is waited for on the pool
+            cordova.getThreadPool().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        awaitInitialization();
+                    } catch (RuntimeException e) {
+                        // Thrown again when the action awaits it in turn
+                    }
+                    uiExecutor.execute(runAction);
+                }
+            });
+        } else {
+            executor.execute(runAction);
+        }
+        return true;
+    }
 
+    /*
+     * Where each action runs. The bridge thread takes every plugin's calls in turn, so only what is cheap
+     * and must stay in order runs on it: dialogs and login go to the UI thread, app events to a thread of
+     * their own so that they are logged in order, and everything else to the pool.
+     * Returns null for unknown actions.
+     */
+    private Executor getActionExecutor(String action) {
+        if (action.equals("login") || action.equals("logout") || action.equals("showDialog")) {
+            return uiExecutor;
+        } else if (action.equals("logEvent") || action.equals("logEvents") || action.equals("logPurchase")) {
+            return eventExecutor;
+        } else if (action.equals("graphApi") || action.equals("getLoginStatus") || action.equals("getAccessToken")
+                || action.equals("getGraphCacheStats") || action.equals("getActionStats")) {
+            return cordova.getThreadPool();
+        } else if (action.equals("cancel")) {
+            // Must not be overtaken by the call it cancels
+            return bridgeExecutor;
+        }
+        return null;
+    }
+
+    private boolean executeAction(String action, JSONArray args, CallbackContext callbackContext) throws JSONException {
         if (action.equals("login")) {
             Log.d(TAG, "login FB");
             // Get the permissions
@@ -253,6 +464,14 @@ public class ConnectPlugin extends CordovaPlugin {
             if (checkActiveSession(session)) {
                 session.closeAndClearTokenInformation();
                 userID = null;
+                // Cached responses belong to the user that is logging out. Clearing reads and rewrites the cache's
+                // journal, so it is left to the pool; entries are keyed by access token, so none can be served meanwhile.
+                cordova.getThreadPool().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        graphCache.clear();
+                    }
+                });
                 callbackContext.success();
             } else {
                 if (session != null) {
@@ -343,6 +562,28 @@ public class ConnectPlugin extends CordovaPlugin {
             }
             callbackContext.success();
             return true;
+        } else if (action.equals("logEvents")) {
+            JSONArray eventsArray = args.getJSONArray(0);
+            List<AppEventsLogger.Event> events = new ArrayList<AppEventsLogger.Event>(eventsArray.length());
+            for (int i = 0; i < eventsArray.length(); i++) {
+                JSONObject event = eventsArray.getJSONObject(i);
+                Bundle parameters = null;
+                JSONObject params = event.optJSONObject("params");
+                if (params != null) {
+                    parameters = new Bundle();
+                    Iterator<?> keys = params.keys();
+                    while (keys.hasNext()) {
+                        String key = (String) keys.next();
+                        // The SDK sends every value as a string anyway
+                        parameters.putString(key, params.getString(key));
+                    }
+                }
+                Double valueToSum = event.isNull("valueToSum") ? null : event.getDouble("valueToSum");
+                events.add(new AppEventsLogger.Event(event.getString("name"), valueToSum, parameters));
+            }
+            logger.logEvents(events);
+            callbackContext.success();
+            return true;
         } else if (action.equals("logPurchase")) {
             /*
              * While calls to logEvent can be made to register purchase events,
@@ -500,12 +741,14 @@ public class ConnectPlugin extends CordovaPlugin {
             }
             return true;
         } else if (action.equals("graphApi")) {
-            graphContext = callbackContext;
+            final GraphCall graphCall = graphCalls.get(callbackContext.getCallbackId());
+            if (graphCall == null) {
+                // Cancelled already
+                return true;
+            }
             PluginResult pr = new PluginResult(PluginResult.Status.NO_RESULT);
             pr.setKeepCallback(true);
-            graphContext.sendPluginResult(pr);
-
-            graphPath = args.getString(0);
+            callbackContext.sendPluginResult(pr);
 
             JSONArray arr = args.getJSONArray(1);
 
@@ -529,34 +772,123 @@ public class ConnectPlugin extends CordovaPlugin {
                     }
                 }
                 if (publishPermissions && readPermissions) {
-                    graphContext.error("Cannot ask for both read and publish permissions.");
+                    graphCalls.remove(graphCall.id);
+                    callbackContext.error("Cannot ask for both read and publish permissions.");
                 } else {
                     Session session = Session.getActiveSession();
                     if (session.getPermissions().containsAll(permissionsList)) {
-                        makeGraphCall();
+                        makeGraphCall(graphCall);
                     } else {
-                        // Set up the new permissions request
-                        Session.NewPermissionsRequest newPermissionsRequest = new Session.NewPermissionsRequest(cordova.getActivity(), permissionsList);
-                        // Set up the activity result callback to this class
-                        cordova.setActivityResultCallback(this);
-                        // Check for write permissions, the default is read (empty)
-                        if (publishPermissions) {
-                            // Request new publish permissions
-                            session.requestNewPublishPermissions(newPermissionsRequest);
-                        } else {
-                            // Request new read permissions
-                            session.requestNewReadPermissions(newPermissionsRequest);
+                        // The call is resumed from onSessionStateChange once the permissions are granted
+                        graphCall.permissions = permissionsList;
+                        graphCall.publishPermissions = publishPermissions;
+                        synchronized (permissionWaiters) {
+                            permissionWaiters.add(graphCall);
+                            requestNextPermissions(session);
                         }
                     }
                 }
             } else {
-                makeGraphCall();
+                makeGraphCall(graphCall);
             }
             return true;
+        } else if (action.equals("getGraphCacheStats")) {
+            JSONObject stats = graphCache.getStats();
+            stats.put("deduplicated", graphDeduplicator.getDeduplicatedCount());
+            stats.put("firstResponseMillis", graphWarmer.getFirstResponseMillis());
+            callbackContext.success(stats);
+            return true;
+        } else if (action.equals("getActionStats")) {
+            callbackContext.success(actionLatencies.toJSON());
+            return true;
+        } else if (action.equals("cancel")) {
+            String requestId = args.getString(0);
+            for (GraphCall graphCall : graphCalls.values()) {
+                if (requestId.equals(graphCall.requestId)) {
+                    cancelGraphCall(graphCall);
+                }
+            }
+            callbackContext.success();
+            return true;
         }
         return false;
     }
 
+    /*
+     * Asks for the permissions of the first waiting graphApi call, unless a request is showing already.
+     * Must hold the lock on permissionWaiters.
+     */
+    private void requestNextPermissions(Session session) {
+        while (!permissionRequestPending && !permissionWaiters.isEmpty()) {
+            GraphCall graphCall = permissionWaiters.get(0);
+            // Set up the new permissions request
+            Session.NewPermissionsRequest newPermissionsRequest = new Session.NewPermissionsRequest(cordova.getActivity(), graphCall.permissions);
+            // Set up the activity result callback to this class
+            cordova.setActivityResultCallback(this);
+            try {
+                // Check for write permissions, the default is read (empty)
+                if (graphCall.publishPermissions) {
+                    // Request new publish permissions
+                    session.requestNewPublishPermissions(newPermissionsRequest);
+                } else {
+                    // Request new read permissions
+                    session.requestNewReadPermissions(newPermissionsRequest);
+                }
+                graphCall.permissionsRequested = true;
+                permissionRequestPending = true;
+            } catch (UnsupportedOperationException e) {
+                // Such as a login asking for permissions at the same time
+                permissionWaiters.remove(0);
+                failGraphCall(graphCall, e);
+            }
+        }
+    }
+
+    /*
+     * Called once the permission request of graphApi calls is answered: makes the calls it was for, or fails
+     * them if it was declined or failed, then asks for the permissions of the next waiting call
+     */
+    private void finishPermissionsRequest(Session session, Exception exception) {
+        List<GraphCall> granted = new ArrayList<GraphCall>();
+        synchronized (permissionWaiters) {
+            if (!permissionRequestPending) {
+                return;
+            }
+            permissionRequestPending = false;
+            boolean opened = checkActiveSession(session);
+            if (exception == null && !opened) {
+                exception = new FacebookAuthorizationException("Session was closed before the permissions were granted");
+            }
+            Iterator<GraphCall> iterator = permissionWaiters.iterator();
+            while (iterator.hasNext()) {
+                GraphCall graphCall = iterator.next();
+                if (!graphCalls.containsKey(graphCall.id)) {
+                    // Cancelled while waiting
+                    iterator.remove();
+                } else if (exception == null && (graphCall.permissionsRequested || session.getPermissions().containsAll(graphCall.permissions))) {
+                    // Permissions the user unticked are left for the Graph API to report
+                    iterator.remove();
+                    granted.add(graphCall);
+                } else if (graphCall.permissionsRequested || !opened) {
+                    iterator.remove();
+                    failGraphCall(graphCall, exception);
+                }
+            }
+            if (opened) {
+                requestNextPermissions(session);
+            }
+        }
+        for (GraphCall graphCall : granted) {
+            makeGraphCall(graphCall);
+        }
+    }
+
+    private void failGraphCall(GraphCall graphCall, Exception exception) {
+        if (graphCalls.remove(graphCall.id) != null) {
+            handleError(exception, graphCall.callbackContext);
+        }
+    }
+
     // Simple active session check
     private boolean checkActiveSession(Session session) {
         if (session != null && session.isOpened()) {
@@ -621,31 +953,36 @@ public class ConnectPlugin extends CordovaPlugin {
 
     private void getUserInfo(final Session session, final Request.GraphUserCallback graphUserCb) {
         if (cordova != null) {
-            Request.newMeRequest(session, graphUserCb).executeAsync();
+            Request request = Request.newMeRequest(session, graphUserCb);
+            // getLoginStatus and login may both ask at startup
+            String key = GraphRequestDeduplicator.getKey(request);
+            if (key == null || !graphDeduplicator.attach(key, request)) {
+                executeOnMainThread(new RequestBatch(request));
+            }
         }
     }
 
-    private void makeGraphCall() {
+    private void makeGraphCall(final GraphCall graphCall) {
         Session session = Session.getActiveSession();
 
-        Request.Callback graphCallback = new Request.Callback() {
+        final Request.Callback graphCallback = new Request.Callback() {
 
             @Override
             public void onCompleted(Response response) {
-                if (graphContext != null) {
+                graphWarmer.recordResponse(SystemClock.elapsedRealtime() - graphCall.sentAtMillis);
+                if (graphCalls.remove(graphCall.id) != null) {
                     if (response.getError() != null) {
-                        graphContext.error(getFacebookRequestErrorResponse(response.getError()));
+                        graphCall.callbackContext.error(getFacebookRequestErrorResponse(response.getError()));
                     } else {
                         GraphObject graphObject = response.getGraphObject();
-                        graphContext.success(graphObject.getInnerJSONObject());
+                        graphCall.callbackContext.success(graphObject.getInnerJSONObject());
                     }
-                    graphPath = null;
-                    graphContext = null;
                 }
             }
         };
 
         //If you're using the paging URLs they will be URLEncoded, let's decode them.
+        String graphPath = graphCall.graphPath;
         try {
             graphPath = URLDecoder.decode(graphPath, "UTF-8");
         } catch (UnsupportedEncodingException e) {
@@ -672,7 +1009,294 @@ public class ConnectPlugin extends CordovaPlugin {
         params.putString("access_token", session.getAccessToken());
 
         graphRequest.setParameters(params);
-        graphRequest.executeAsync();
+        if (graphCall.reportProgress) {
+            // Only asked for, since a progress callback makes the SDK measure the body before sending it
+            graphRequest.setCallback(new Request.OnProgressCallback() {
+                @Override
+                public void onProgress(long current, long max) {
+                    sendProgress(graphCall, current, max);
+                }
+
+                @Override
+                public void onCompleted(Response response) {
+                    graphCallback.onCompleted(response);
+                }
+            });
+        }
+
+        graphCall.sentAtMillis = SystemClock.elapsedRealtime();
+        if (graphCall.rawResponse || graphCall.cachePolicy != GraphResponseCache.Policy.NETWORK_ONLY) {
+            // Batch responses wrap each body in JSON, so these calls always go on their own
+            graphCall.batch = new RequestBatch(graphRequest);
+            executeDirectGraphCall(graphCall, graphAction,
+                    GraphResponseCache.getKey(session.getAccessToken(), graphPath));
+        } else if (!graphCall.reportProgress && shareGraphCall(graphCall, graphRequest)) {
+            // Answered along with an identical call that is already in flight
+        } else if (graphBatcher != null && !graphCall.reportProgress) {
+            graphCall.request = graphRequest;
+            graphBatcher.add(graphRequest);
+        } else {
+            // On its own batch, so that cancelling it aborts its connection
+            graphCall.batch = new RequestBatch(graphRequest);
+            executeOnMainThread(graphCall.batch);
+        }
+        if (graphCall.cancelled) {
+            // cancel() came in while the request was being set up
+            cancelGraphCall(graphCall);
+        }
+    }
+
+    /*
+     * RequestAsyncTask delivers callbacks to a Handler of the thread that starts it, and actions run on pool
+     * threads, which have no Looper. A batch cancelled before it starts is not sent.
+     */
+    private void executeOnMainThread(final RequestBatch batch) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                batch.executeAsync();
+            }
+        });
+    }
+
+    /*
+     * Returns true if an identical call is in flight and this one will get its response,
+     * otherwise the request should be sent, and identical calls made meanwhile will wait on it
+     */
+    private boolean shareGraphCall(GraphCall graphCall, Request graphRequest) {
+        String key = GraphRequestDeduplicator.getKey(graphRequest);
+        if (key == null) {
+            return false;
+        }
+        graphCall.sharedKey = key;
+        graphCall.sharedCallback = graphRequest.getCallback();
+        return graphDeduplicator.attach(key, graphRequest);
+    }
+
+    /*
+     * Fails the call right away and stops its request, closing the connection if it is on its own
+     */
+    private void cancelGraphCall(GraphCall graphCall) {
+        graphCall.cancelled = true;
+        RequestBatch batch = graphCall.batch;
+        Request request = graphCall.request;
+        if (graphCall.sharedKey != null && !graphDeduplicator.detach(graphCall.sharedKey, graphCall.sharedCallback)) {
+            // Identical calls still need the response
+        } else if (batch != null) {
+            batch.cancel();
+        } else if (request != null && graphBatcher != null) {
+            // Once a batch is under way the others in it still need their results, so this one's is dropped
+            graphBatcher.remove(request);
+        }
+        if (graphCalls.remove(graphCall.id) != null) {
+            graphCall.callbackContext.error(getErrorResponse(new FacebookOperationCanceledException(),
+                    "Request cancelled", CANCELLED_ERROR_CODE));
+        }
+    }
+
+    private void sendProgress(GraphCall graphCall, long loaded, long total) {
+        if (!graphCall.reportProgress || !graphCalls.containsKey(graphCall.id)) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (now - graphCall.lastProgressMillis < PROGRESS_INTERVAL_MILLIS && loaded != total) {
+            return;
+        }
+        graphCall.lastProgressMillis = now;
+
+        try {
+            JSONObject progress = new JSONObject();
+            progress.put("_fbProgress", true);
+            progress.put("loaded", loaded);
+            progress.put("total", total);
+            PluginResult pr = new PluginResult(PluginResult.Status.OK, progress);
+            pr.setKeepCallback(true);
+            graphCall.callbackContext.sendPluginResult(pr);
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /*
+     * Fetches the response body itself rather than through the SDK, so that it can be sent to JS
+     * unparsed, served from the cache, or revalidated with its ETag
+     */
+    private void executeDirectGraphCall(final GraphCall graphCall, final String graphAction, final String cacheKey) {
+        cordova.getThreadPool().execute(new Runnable() {
+            @Override
+            public void run() {
+                GraphResponseCache.Policy policy = cacheKey != null ? graphCall.cachePolicy : GraphResponseCache.Policy.NETWORK_ONLY;
+                GraphResponseCache.Entry entry = null;
+                boolean fresh = false;
+                if (policy != GraphResponseCache.Policy.NETWORK_ONLY) {
+                    entry = graphCache.get(cacheKey);
+                    long maxAge = graphCall.maxAgeMillis >= 0 ? graphCall.maxAgeMillis : graphCache.getMaxAgeMillis(graphAction);
+                    fresh = entry != null && entry.isFresh(maxAge);
+                }
+
+                if (entry != null && (fresh && policy == GraphResponseCache.Policy.CACHE_FIRST
+                        || policy == GraphResponseCache.Policy.STALE_WHILE_REVALIDATE)) {
+                    graphCache.recordHit(fresh);
+                    sendGraphBody(graphCall, entry.body);
+                    if (!fresh) {
+                        // Refresh the entry for next time; the call has had its answer already
+                        try {
+                            fetchGraphBody(graphCall, policy, cacheKey, entry, false);
+                        } catch (IOException e) {
+                            Log.d(TAG, "Could not revalidate " + graphAction + ": " + e);
+                        }
+                    }
+                    return;
+                }
+
+                try {
+                    FetchedBody fetched = fetchGraphBody(graphCall, policy, cacheKey, entry, true);
+                    if (fetched.statusCode >= HttpURLConnection.HTTP_INTERNAL_ERROR && entry != null) {
+                        sendFallbackBody(graphCall, entry);
+                    } else if (fetched.statusCode >= HttpURLConnection.HTTP_BAD_REQUEST) {
+                        if (graphCalls.remove(graphCall.id) != null) {
+                            graphCall.callbackContext.error(getRawResponseError(fetched.statusCode, fetched.body));
+                        }
+                    } else {
+                        sendGraphBody(graphCall, fetched.body);
+                    }
+                } catch (Exception e) {
+                    if (entry != null && !graphCall.cancelled) {
+                        sendFallbackBody(graphCall, entry);
+                    } else if (graphCalls.remove(graphCall.id) != null) {
+                        graphCall.callbackContext.error(getErrorResponse(e, "Facebook error: " + e.getMessage(), INVALID_ERROR_CODE));
+                    }
+                }
+            }
+        });
+    }
+
+    /*
+     * Status and body of a graph response; the body of a revalidated cache entry is returned with status 200
+     */
+    private static class FetchedBody {
+        final int statusCode;
+        final byte[] body;
+
+        FetchedBody(int statusCode, byte[] body) {
+            this.statusCode = statusCode;
+            this.body = body;
+        }
+    }
+
+    private FetchedBody fetchGraphBody(GraphCall graphCall, GraphResponseCache.Policy policy, String cacheKey,
+            GraphResponseCache.Entry entry, boolean inForeground) throws IOException {
+        HttpURLConnection connection = null;
+        try {
+            connection = Request.toHttpConnection(graphCall.batch);
+            if (entry != null && entry.etag != null) {
+                connection.setRequestProperty("If-None-Match", entry.etag);
+            }
+
+            int statusCode = connection.getResponseCode();
+            if (inForeground) {
+                graphWarmer.recordResponse(SystemClock.elapsedRealtime() - graphCall.sentAtMillis);
+            }
+            if (statusCode == HttpURLConnection.HTTP_NOT_MODIFIED && entry != null) {
+                graphCache.recordNotModified();
+                // Still good, so it is fresh again
+                graphCache.put(cacheKey, entry.etag, entry.body);
+                return new FetchedBody(HttpURLConnection.HTTP_OK, entry.body);
+            } else if (statusCode >= HttpURLConnection.HTTP_BAD_REQUEST) {
+                return new FetchedBody(statusCode, readFully(connection.getErrorStream(), -1, null));
+            }
+
+            byte[] body = readFully(connection.getInputStream(), connection.getContentLength(),
+                    inForeground && graphCall.reportProgress ? graphCall : null);
+            if (policy != GraphResponseCache.Policy.NETWORK_ONLY) {
+                graphCache.recordMiss();
+                graphCache.put(cacheKey, connection.getHeaderField("ETag"), body);
+            }
+            return new FetchedBody(statusCode, body);
+        } catch (FacebookException e) {
+            // Could not build or send the request
+            throw new IOException(e.getMessage());
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    private void sendFallbackBody(GraphCall graphCall, GraphResponseCache.Entry entry) {
+        graphCache.recordNetworkFallback();
+        sendGraphBody(graphCall, entry.body);
+    }
+
+    /*
+     * Sends a response body to JS, as an ArrayBuffer without parsing it if the call asked for that,
+     * so that large responses are only parsed once, in JS
+     */
+    private void sendGraphBody(GraphCall graphCall, byte[] body) {
+        if (graphCalls.remove(graphCall.id) == null) {
+            return;
+        }
+        if (graphCall.rawResponse) {
+            graphCall.callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.OK, body));
+            return;
+        }
+        try {
+            Object value = new JSONTokener(new String(body, "UTF-8")).nextValue();
+            if (value instanceof JSONObject) {
+                graphCall.callbackContext.success((JSONObject) value);
+            } else {
+                // The same shape the SDK gives responses that are not objects, such as "true"
+                JSONObject wrapped = new JSONObject();
+                wrapped.put(Response.NON_JSON_RESPONSE_PROPERTY, value);
+                graphCall.callbackContext.success(wrapped);
+            }
+        } catch (Exception e) {
+            graphCall.callbackContext.error(getErrorResponse(e, "Facebook error: " + e.getMessage(), INVALID_ERROR_CODE));
+        }
+    }
+
+    private JSONObject getRawResponseError(int statusCode, byte[] errorBody) {
+        try {
+            JSONObject error = new JSONObject(new String(errorBody, "UTF-8")).getJSONObject("error");
+            return getFacebookRequestErrorResponse(new FacebookRequestError(error.optInt("code", statusCode),
+                    error.optString("type"), error.optString("message")));
+        } catch (Exception e) {
+            return getFacebookRequestErrorResponse(new FacebookRequestError(statusCode, null, "HTTP " + statusCode));
+        }
+    }
+
+    // Reports download progress for the graph call, if any; the total is -1 when the length is not known
+    private byte[] readFully(InputStream stream, int contentLength, GraphCall progressCall) throws IOException {
+        if (stream == null) {
+            return new byte[0];
+        }
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(contentLength > 0 ? contentLength : 8192);
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = stream.read(buffer)) != -1) {
+                bytes.write(buffer, 0, count);
+                if (progressCall != null) {
+                    sendProgress(progressCall, bytes.size(), contentLength);
+                }
+            }
+            return bytes.toByteArray();
+        } finally {
+            stream.close();
+        }
+    }
+
+    private int parseIntPreference(CordovaWebView webView, String name, int defaultValue) {
+        String value = webView.getProperty(name, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Invalid value for preference " + name + ": " + value);
+            return defaultValue;
+        }
     }
 
     /*
@@ -684,7 +1308,11 @@ public class ConnectPlugin extends CordovaPlugin {
             // only handle FacebookOperationCanceledException to support
             // SDK recovery behavior triggered by getUserInfo
             Log.e(TAG, "exception:" + exception.toString());
-            handleError(exception, loginContext);
+            if (loginContext != null) {
+                handleError(exception, loginContext);
+            }
+            // The graphApi calls whose permission dialog was dismissed
+            finishPermissionsRequest(Session.getActiveSession(), exception);
         } else {
             final Session session = Session.getActiveSession();
             // Check if the session is open
@@ -711,16 +1339,63 @@ public class ConnectPlugin extends CordovaPlugin {
                             }
                         }
                     });
-                } else if (graphContext != null) {
-                    // Make the graph call
-                    makeGraphCall();
+                } else {
+                    // Make the graph calls that were waiting on new permissions, or fail them if the request failed
+                    finishPermissionsRequest(session, exception);
                 }
-            } else if (state == SessionState.CLOSED_LOGIN_FAILED && loginContext != null){
-                handleError(new FacebookAuthorizationException("Session was closed and was not closed normally"), loginContext);
+            } else if (state.isClosed()) {
+                if (state == SessionState.CLOSED_LOGIN_FAILED && loginContext != null) {
+                    handleError(new FacebookAuthorizationException("Session was closed and was not closed normally"), loginContext);
+                }
+                // Calls waiting on permissions will not get them from this session
+                finishPermissionsRequest(session, exception);
             }
         }
     }
 
+    /*
+     * State of a single graphApi call, so that overlapping calls from JS do not clobber each other
+     */
+    private static class GraphCall {
+        final String id;
+        final CallbackContext callbackContext;
+        final String graphPath;
+        // The id JS knows the call by, for cancel()
+        final String requestId;
+        // Whether the response body goes back as an ArrayBuffer rather than a parsed object
+        final boolean rawResponse;
+        final boolean reportProgress;
+        final GraphResponseCache.Policy cachePolicy;
+        // Overrides the time to live of the path if not negative
+        final long maxAgeMillis;
+        // Set while the call waits on new permissions
+        List<String> permissions;
+        boolean publishPermissions;
+        // Whether the permission request showing is this call's, rather than one it waits behind
+        boolean permissionsRequested;
+        volatile boolean cancelled = false;
+        // Set once the call is sent: the batch it is sent on if it has its own, otherwise the queued request
+        volatile RequestBatch batch;
+        volatile Request request;
+        // Set if the call may share its request with identical ones
+        volatile String sharedKey;
+        volatile Request.Callback sharedCallback;
+        long lastProgressMillis;
+        // When the request was handed to the SDK, to measure how long the first response takes
+        long sentAtMillis;
+
+        GraphCall(CallbackContext callbackContext, String graphPath, JSONObject options) {
+            this.id = callbackContext.getCallbackId();
+            this.callbackContext = callbackContext;
+            this.graphPath = graphPath;
+            this.requestId = options != null ? options.optString("requestId", null) : null;
+            this.rawResponse = options != null && RESPONSE_TYPE_ARRAYBUFFER.equals(options.optString("responseType"));
+            this.reportProgress = options != null && options.optBoolean("progress");
+            this.cachePolicy = GraphResponseCache.Policy.fromString(options != null ? options.optString("cache") : null);
+            this.maxAgeMillis = options != null && options.has("maxAge") ? options.optLong("maxAge") * 1000 : -1;
+        }
+    }
+
     /*
      * Checks for publish permissions
      */
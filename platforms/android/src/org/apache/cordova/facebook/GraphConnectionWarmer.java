@@ -0,0 +1,113 @@
+package org.apache.cordova.facebook;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.Executor;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.facebook.Settings;
+import com.facebook.internal.ServerProtocol;
+
+/*
+ * Opens a connection to the Graph API ahead of the first call, so that DNS, TCP and TLS are out of the
+ * way by the time the app needs a response. HttpURLConnection keeps the connection, and the TLS session,
+ * for the requests the SDK makes afterwards, as long as the warm-up response is read to the end.
+ */
+class GraphConnectionWarmer {
+
+    private static final String TAG = "GraphConnectionWarmer";
+    private static final int TIMEOUT_MILLIS = 10 * 1000;
+    // Idle connections are evicted after a few minutes, so resuming more often than this reuses the last one
+    private static final long MIN_INTERVAL_MILLIS = 60 * 1000;
+
+    private final Executor executor;
+    private long lastWarmUpMillis = -1;
+    private volatile boolean warmedUp = false;
+    private volatile long firstResponseMillis = -1;
+
+    GraphConnectionWarmer(Executor executor) {
+        this.executor = executor;
+    }
+
+    /*
+     * Connects in the background, unless that was done a moment ago
+     */
+    synchronized void warmUpAsync() {
+        long now = SystemClock.elapsedRealtime();
+        if (lastWarmUpMillis >= 0 && now - lastWarmUpMillis < MIN_INTERVAL_MILLIS) {
+            return;
+        }
+        lastWarmUpMillis = now;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                warmUp();
+            }
+        });
+    }
+
+    private void warmUp() {
+        long start = SystemClock.elapsedRealtime();
+        HttpURLConnection connection = null;
+        InputStream stream = null;
+        try {
+            // Over whatever the SDK sends its requests on, so that it is that connection pool that is warmed up
+            URL url = new URL(ServerProtocol.getGraphUrlBase());
+            Settings.ConnectionFactory connectionFactory = Settings.getConnectionFactory();
+            if (connectionFactory != null) {
+                connection = connectionFactory.openConnection(url);
+            } else {
+                connection = (HttpURLConnection) url.openConnection();
+            }
+            connection.setRequestMethod("HEAD");
+            connection.setConnectTimeout(TIMEOUT_MILLIS);
+            connection.setReadTimeout(TIMEOUT_MILLIS);
+            // Any status will do, it only has to be read so that the connection goes back to the pool
+            int statusCode = connection.getResponseCode();
+            stream = statusCode >= HttpURLConnection.HTTP_BAD_REQUEST ? connection.getErrorStream() : connection.getInputStream();
+            if (stream != null) {
+                while (stream.read() != -1) {
+                    // HEAD responses have no body, this only makes sure
+                }
+            }
+            warmedUp = true;
+            Log.d(TAG, "Connected to the Graph API in " + (SystemClock.elapsedRealtime() - start) + " ms");
+        } catch (IOException e) {
+            // The first call will connect as it always has
+            Log.d(TAG, "Could not connect to the Graph API: " + e);
+        } finally {
+            if (stream != null) {
+                try {
+                    stream.close();
+                } catch (IOException e) {
+                    // Nothing to do
+                }
+            }
+            // Deliberately not disconnected, which would close the socket instead of pooling it
+        }
+    }
+
+    /*
+     * Records how long the first Graph call of the app took to be answered, the figure warming up is meant to cut
+     */
+    void recordResponse(long elapsedMillis) {
+        if (firstResponseMillis < 0) {
+            synchronized (this) {
+                if (firstResponseMillis >= 0) {
+                    return;
+                }
+                firstResponseMillis = elapsedMillis;
+            }
+            Log.d(TAG, "First Graph response after " + elapsedMillis + " ms, connection "
+                    + (warmedUp ? "warmed up" : "not warmed up"));
+        }
+    }
+
+    long getFirstResponseMillis() {
+        return firstResponseMillis;
+    }
+}
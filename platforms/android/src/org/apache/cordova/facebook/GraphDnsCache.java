@@ -0,0 +1,174 @@
+package org.apache.cordova.facebook;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import android.os.SystemClock;
+
+/*
+ * Remembers the addresses of the hosts Graph requests go to. Addresses are kept for a minute by default and
+ * looked up again in the background once most of that has passed, so that hosts in steady use are never looked
+ * up on the calling thread again. Unknown hosts are remembered for a few seconds, so that they fail fast.
+ * Addresses come back with IPv6 and IPv4 alternating, so that a connection failing on one family is retried
+ * on the other straight away rather than after every address of the first.
+ */
+class GraphDnsCache {
+
+    /*
+     * What the cache asks for addresses it does not have, the platform resolver unless a test passes another
+     */
+    interface Resolver {
+        InetAddress[] getAllByName(String host) throws UnknownHostException;
+    }
+
+    static final Resolver SYSTEM_RESOLVER = new Resolver() {
+        @Override
+        public InetAddress[] getAllByName(String host) throws UnknownHostException {
+            return InetAddress.getAllByName(host);
+        }
+    };
+
+    static final long DEFAULT_TTL_MILLIS = 60 * 1000;
+    static final long DEFAULT_NEGATIVE_TTL_MILLIS = 5 * 1000;
+    // The Graph API, its CDN and little else
+    private static final int MAX_ENTRIES = 32;
+
+    private static class Entry {
+        // Null if the host is unknown
+        final InetAddress[] addresses;
+        final long fetchedAt;
+        boolean refreshing;
+
+        Entry(InetAddress[] addresses, long fetchedAt) {
+            this.addresses = addresses;
+            this.fetchedAt = fetchedAt;
+        }
+    }
+
+    private final Resolver resolver;
+    private final long ttlMillis;
+    // Refreshed once this much of the time to live has passed
+    private final long refreshMillis;
+    private final long negativeTtlMillis;
+    private final Executor refreshExecutor;
+    private final Map<String, Entry> cache = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    GraphDnsCache(Executor refreshExecutor) {
+        this(SYSTEM_RESOLVER, DEFAULT_TTL_MILLIS, DEFAULT_NEGATIVE_TTL_MILLIS, refreshExecutor);
+    }
+
+    GraphDnsCache(Resolver resolver, long ttlMillis, long negativeTtlMillis, Executor refreshExecutor) {
+        this.resolver = resolver;
+        this.ttlMillis = ttlMillis;
+        this.refreshMillis = ttlMillis * 3 / 4;
+        this.negativeTtlMillis = negativeTtlMillis;
+        this.refreshExecutor = refreshExecutor;
+    }
+
+    InetAddress[] getAllByName(final String host) throws UnknownHostException {
+        long now = SystemClock.elapsedRealtime();
+        Entry entry;
+        boolean refresh = false;
+        synchronized (this) {
+            entry = cache.get(host);
+            if (entry != null && now - entry.fetchedAt >= (entry.addresses != null ? ttlMillis : negativeTtlMillis)) {
+                cache.remove(host);
+                entry = null;
+            }
+            if (entry != null && entry.addresses != null && !entry.refreshing && now - entry.fetchedAt >= refreshMillis) {
+                entry.refreshing = true;
+                refresh = true;
+            }
+        }
+
+        if (entry == null) {
+            return lookUp(host).clone();
+        }
+        if (refresh) {
+            refreshExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        lookUp(host);
+                    } catch (UnknownHostException e) {
+                        // The addresses we have are used until they expire
+                        refreshFailed(host);
+                    }
+                }
+            });
+        }
+        if (entry.addresses == null) {
+            throw new UnknownHostException(host);
+        }
+        return entry.addresses.clone();
+    }
+
+    private InetAddress[] lookUp(String host) throws UnknownHostException {
+        InetAddress[] addresses;
+        try {
+            addresses = interleaveFamilies(resolver.getAllByName(host));
+        } catch (UnknownHostException e) {
+            synchronized (this) {
+                Entry current = cache.get(host);
+                // A failed refresh does not replace addresses that still work
+                if (current == null || current.addresses == null) {
+                    cache.put(host, new Entry(null, SystemClock.elapsedRealtime()));
+                }
+            }
+            throw e;
+        }
+        synchronized (this) {
+            cache.put(host, new Entry(addresses, SystemClock.elapsedRealtime()));
+        }
+        return addresses;
+    }
+
+    private synchronized void refreshFailed(String host) {
+        Entry current = cache.get(host);
+        if (current != null) {
+            current.refreshing = false;
+        }
+    }
+
+    /*
+     * Alternates between IPv6 and IPv4, starting with the family of the first address and otherwise
+     * keeping the resolver's order
+     */
+    static InetAddress[] interleaveFamilies(InetAddress[] addresses) {
+        if (addresses == null || addresses.length < 2) {
+            return addresses;
+        }
+        List<InetAddress> first = new ArrayList<InetAddress>();
+        List<InetAddress> second = new ArrayList<InetAddress>();
+        boolean firstIsIpv6 = addresses[0] instanceof Inet6Address;
+        for (InetAddress address : addresses) {
+            if ((address instanceof Inet6Address) == firstIsIpv6) {
+                first.add(address);
+            } else {
+                second.add(address);
+            }
+        }
+        InetAddress[] result = new InetAddress[addresses.length];
+        int i = 0;
+        for (int j = 0; j < Math.max(first.size(), second.size()); j++) {
+            if (j < first.size()) {
+                result[i++] = first.get(j);
+            }
+            if (j < second.size()) {
+                result[i++] = second.get(j);
+            }
+        }
+        return result;
+    }
+}
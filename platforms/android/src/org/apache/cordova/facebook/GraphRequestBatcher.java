@@ -0,0 +1,102 @@
+package org.apache.cordova.facebook;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.facebook.Request;
+import com.facebook.RequestBatch;
+
+/*
+ * Coalesces graph requests that arrive within a short window into a single RequestBatch,
+ * so a burst of graphApi calls costs one round trip. RequestBatch already hands each
+ * Response back to the callback of the Request it belongs to.
+ */
+class GraphRequestBatcher {
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final int windowMillis;
+    private final int maxBatchSize;
+    private final List<Request> pending = new ArrayList<Request>();
+
+    private final Runnable flushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    GraphRequestBatcher(int windowMillis, int maxBatchSize) {
+        this.windowMillis = windowMillis;
+        this.maxBatchSize = Math.max(1, Math.min(maxBatchSize, Request.MAXIMUM_BATCH_SIZE));
+    }
+
+    /*
+     * Queues a request, sending the batch once the window expires or the batch is full
+     */
+    void add(Request request) {
+        RequestBatch fullBatch = null;
+        synchronized (this) {
+            pending.add(request);
+            if (pending.size() >= maxBatchSize) {
+                fullBatch = takePending();
+            } else if (pending.size() == 1) {
+                handler.postDelayed(flushRunnable, windowMillis);
+            }
+        }
+        if (fullBatch != null) {
+            execute(fullBatch);
+        }
+    }
+
+    /*
+     * Takes a request back out of the queue, returning false if it has been sent already
+     */
+    synchronized boolean remove(Request request) {
+        boolean removed = pending.remove(request);
+        if (pending.isEmpty()) {
+            handler.removeCallbacks(flushRunnable);
+        }
+        return removed;
+    }
+
+    /*
+     * Sends every queued request now
+     */
+    void flush() {
+        RequestBatch batch;
+        synchronized (this) {
+            batch = takePending();
+        }
+        if (batch != null) {
+            execute(batch);
+        }
+    }
+
+    private RequestBatch takePending() {
+        handler.removeCallbacks(flushRunnable);
+        if (pending.isEmpty()) {
+            return null;
+        }
+        RequestBatch batch = new RequestBatch(pending);
+        pending.clear();
+        return batch;
+    }
+
+    private void execute(final RequestBatch batch) {
+        // A full batch is taken on the thread that added to it, which may have no Looper for the callbacks
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (batch.size() == 1) {
+                    // No need for the batch envelope
+                    batch.get(0).executeAsync();
+                } else {
+                    batch.executeAsync();
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,120 @@
+package org.apache.cordova.facebook;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.Bundle;
+
+import com.facebook.HttpMethod;
+import com.facebook.Request;
+import com.facebook.Response;
+
+/*
+ * Shares one round trip between identical graph requests that are in flight at the same time,
+ * such as several parts of an app asking for "me" on startup. Every caller gets the same Response.
+ * Only GET requests are shared, since anything else may change something on each call.
+ */
+class GraphRequestDeduplicator {
+
+    // Callbacks waiting on each in-flight request, the first one being that of the request sent
+    private final Map<String, List<Request.Callback>> inFlight = new HashMap<String, List<Request.Callback>>();
+    private final AtomicLong deduplicated = new AtomicLong();
+
+    /*
+     * Identifies a request by its session, method, path and parameters, or returns null if it should not be shared
+     */
+    static String getKey(Request request) {
+        HttpMethod method = request.getHttpMethod() != null ? request.getHttpMethod() : HttpMethod.GET;
+        String graphPath = request.getGraphPath();
+        if (method != HttpMethod.GET || graphPath == null) {
+            return null;
+        }
+
+        StringBuilder key = new StringBuilder();
+        if (request.getSession() != null) {
+            key.append(request.getSession().getAccessToken());
+        }
+        key.append(' ').append(method).append(' ');
+        key.append(graphPath.startsWith("/") ? graphPath.substring(1) : graphPath);
+
+        // Parameter order does not change the request
+        Bundle parameters = request.getParameters();
+        char separator = '?';
+        for (String name : new TreeSet<String>(parameters.keySet())) {
+            Object value = parameters.get(name);
+            if (value != null && !(value instanceof String) && !(value instanceof Number) && !(value instanceof Boolean)) {
+                // Attachments are not worth comparing
+                return null;
+            }
+            key.append(separator).append(name).append('=').append(value);
+            separator = '&';
+        }
+        return key.toString();
+    }
+
+    /*
+     * Returns true if an identical request is already in flight, in which case the callback of this one
+     * gets that request's response and this one must not be sent. Otherwise the request becomes the one
+     * the others wait on, and should be sent as usual.
+     */
+    synchronized boolean attach(final String key, Request request) {
+        List<Request.Callback> callbacks = inFlight.get(key);
+        if (callbacks != null) {
+            callbacks.add(request.getCallback());
+            deduplicated.incrementAndGet();
+            return true;
+        }
+
+        final List<Request.Callback> waiting = new ArrayList<Request.Callback>();
+        waiting.add(request.getCallback());
+        inFlight.put(key, waiting);
+        request.setCallback(new Request.Callback() {
+            @Override
+            public void onCompleted(Response response) {
+                complete(key, waiting, response);
+            }
+        });
+        return false;
+    }
+
+    /*
+     * Stops waiting on a request, returning true if nobody else waits on it either, so that it may be aborted
+     */
+    synchronized boolean detach(String key, Request.Callback callback) {
+        List<Request.Callback> callbacks = inFlight.get(key);
+        if (callbacks == null) {
+            return true;
+        }
+        callbacks.remove(callback);
+        if (callbacks.isEmpty()) {
+            // Identical requests from now on are sent afresh rather than joining one that may be aborted
+            inFlight.remove(key);
+            return true;
+        }
+        return false;
+    }
+
+    long getDeduplicatedCount() {
+        return deduplicated.get();
+    }
+
+    private void complete(String key, List<Request.Callback> waiting, Response response) {
+        List<Request.Callback> callbacks;
+        synchronized (this) {
+            // Unless everyone detached and an identical request has been sent since
+            if (inFlight.get(key) == waiting) {
+                inFlight.remove(key);
+            }
+            callbacks = new ArrayList<Request.Callback>(waiting);
+        }
+        for (Request.Callback callback : callbacks) {
+            if (callback != null) {
+                callback.onCompleted(response);
+            }
+        }
+    }
+}
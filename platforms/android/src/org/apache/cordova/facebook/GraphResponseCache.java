@@ -0,0 +1,241 @@
+package org.apache.cordova.facebook;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.facebook.internal.FileLruCache;
+
+/*
+ * Disk cache of Graph response bodies for graphApi calls that ask for one, with a time to live
+ * per path and the ETag of each response so that stale entries can be revalidated cheaply
+ */
+class GraphResponseCache {
+
+    /*
+     * How a graphApi call uses the cache
+     */
+    enum Policy {
+        // Always go to the network; the default, and what calls did before there was a cache
+        NETWORK_ONLY,
+        // Use a fresh entry without going to the network, otherwise fetch
+        CACHE_FIRST,
+        // Fetch, and only fall back to an entry if the network fails
+        NETWORK_FIRST,
+        // Use any entry right away, and refresh it in the background if it is stale
+        STALE_WHILE_REVALIDATE;
+
+        static Policy fromString(String value) {
+            if ("cache-first".equals(value)) {
+                return CACHE_FIRST;
+            } else if ("network-first".equals(value)) {
+                return NETWORK_FIRST;
+            } else if ("stale-while-revalidate".equals(value)) {
+                return STALE_WHILE_REVALIDATE;
+            }
+            return NETWORK_ONLY;
+        }
+    }
+
+    /*
+     * A cached response body, with when it was fetched and the ETag it came with, if any
+     */
+    static class Entry {
+        final long fetchedAt;
+        final String etag;
+        final byte[] body;
+
+        Entry(long fetchedAt, String etag, byte[] body) {
+            this.fetchedAt = fetchedAt;
+            this.etag = etag;
+            this.body = body;
+        }
+
+        boolean isFresh(long maxAgeMillis) {
+            long age = System.currentTimeMillis() - fetchedAt;
+            return age >= 0 && age < maxAgeMillis;
+        }
+    }
+
+    private static final String TAG = "GraphResponseCache";
+    private static final String CACHE_TAG = "GraphResponseCache";
+
+    private final FileLruCache cache;
+    private final long defaultMaxAgeMillis;
+    // Longest prefix first
+    private final List<String> pathPrefixes = new ArrayList<String>();
+    private final List<Long> pathMaxAges = new ArrayList<Long>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong staleHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong notModified = new AtomicLong();
+    private final AtomicLong networkFallbacks = new AtomicLong();
+
+    /*
+     * pathMaxAges is a comma separated list of path=seconds pairs, e.g. "me=3600,me/friends=600",
+     * matched against the start of the graph path
+     */
+    GraphResponseCache(Context context, int defaultMaxAgeSeconds, String pathMaxAges) {
+        this.cache = new FileLruCache(context, CACHE_TAG, new FileLruCache.Limits());
+        this.defaultMaxAgeMillis = defaultMaxAgeSeconds * 1000L;
+        parsePathMaxAges(pathMaxAges);
+    }
+
+    private void parsePathMaxAges(String value) {
+        if (value == null) {
+            return;
+        }
+        for (String pair : value.split(",")) {
+            int splitPoint = pair.indexOf('=');
+            if (splitPoint <= 0) {
+                continue;
+            }
+            String path = normalizePath(pair.substring(0, splitPoint).trim());
+            try {
+                long maxAge = Long.parseLong(pair.substring(splitPoint + 1).trim()) * 1000L;
+                int i = 0;
+                while (i < pathPrefixes.size() && pathPrefixes.get(i).length() >= path.length()) {
+                    i++;
+                }
+                pathPrefixes.add(i, path);
+                pathMaxAges.add(i, maxAge);
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "Invalid cache time to live: " + pair);
+            }
+        }
+    }
+
+    private static String normalizePath(String path) {
+        return path.startsWith("/") ? path.substring(1) : path;
+    }
+
+    /*
+     * Cache keys are per user, but cache files should not hold access tokens, so only a digest is used
+     */
+    static String getKey(String accessToken, String graphPath) {
+        String user = "";
+        if (accessToken != null) {
+            try {
+                MessageDigest digest = MessageDigest.getInstance("SHA-1");
+                byte[] hash = digest.digest(accessToken.getBytes());
+                StringBuilder builder = new StringBuilder();
+                for (byte b : hash) {
+                    builder.append(Integer.toHexString((b >> 4) & 0xf));
+                    builder.append(Integer.toHexString(b & 0xf));
+                }
+                user = builder.toString();
+            } catch (NoSuchAlgorithmException e) {
+                return null;
+            }
+        }
+        return user + " " + graphPath;
+    }
+
+    /*
+     * The time to live of responses for a graph path, without its query
+     */
+    long getMaxAgeMillis(String graphPath) {
+        String path = normalizePath(graphPath);
+        for (int i = 0; i < pathPrefixes.size(); i++) {
+            String prefix = pathPrefixes.get(i);
+            if (path.equals(prefix) || path.startsWith(prefix + "/")) {
+                return pathMaxAges.get(i);
+            }
+        }
+        return defaultMaxAgeMillis;
+    }
+
+    Entry get(String key) {
+        InputStream stream = null;
+        try {
+            stream = cache.get(key);
+            if (stream == null) {
+                return null;
+            }
+            DataInputStream input = new DataInputStream(stream);
+            long fetchedAt = input.readLong();
+            String etag = input.readUTF();
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = input.read(buffer)) != -1) {
+                body.write(buffer, 0, count);
+            }
+            return new Entry(fetchedAt, etag.length() > 0 ? etag : null, body.toByteArray());
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read cache entry: " + e);
+            return null;
+        } finally {
+            closeQuietly(stream);
+        }
+    }
+
+    void put(String key, String etag, byte[] body) {
+        DataOutputStream output = null;
+        try {
+            output = new DataOutputStream(cache.openPutStream(key, null));
+            output.writeLong(System.currentTimeMillis());
+            output.writeUTF(etag != null ? etag : "");
+            output.write(body);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not write cache entry: " + e);
+        } finally {
+            closeQuietly(output);
+        }
+    }
+
+    void clear() {
+        cache.clearCache();
+    }
+
+    void recordHit(boolean fresh) {
+        (fresh ? hits : staleHits).incrementAndGet();
+    }
+
+    void recordMiss() {
+        misses.incrementAndGet();
+    }
+
+    void recordNotModified() {
+        notModified.incrementAndGet();
+    }
+
+    void recordNetworkFallback() {
+        networkFallbacks.incrementAndGet();
+    }
+
+    JSONObject getStats() throws JSONException {
+        JSONObject stats = new JSONObject();
+        stats.put("hits", hits.get());
+        stats.put("staleHits", staleHits.get());
+        stats.put("misses", misses.get());
+        stats.put("notModified", notModified.get());
+        stats.put("networkFallbacks", networkFallbacks.get());
+        return stats;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Nothing to do
+            }
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package org.apache.cordova.facebook;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import android.util.Log;
+
+import com.facebook.Settings;
+
+/*
+ * Opens the SDK's connections through the OkHttp that cordova-android bundles, looking hosts up in a
+ * GraphDnsCache. OkHttp is an internal of cordova-android and only some copies of it take a Dns, so it
+ * is found by reflection, and create returns null where it is missing or too old.
+ */
+class OkHttpConnectionFactory implements Settings.ConnectionFactory {
+
+    private static final String TAG = "OkHttpConnectionFactory";
+    private static final String CLIENT_CLASS = "com.squareup.okhttp.OkHttpClient";
+    private static final String DNS_CLASS = "com.squareup.okhttp.internal.Dns";
+
+    private final Object client;
+    private final Method open;
+
+    private OkHttpConnectionFactory(Object client, Method open) {
+        this.client = client;
+        this.open = open;
+    }
+
+    /*
+     * Returns a factory whose connections look hosts up in dnsCache, or null if this cordova-android's OkHttp
+     * cannot be given a Dns, in which case the SDK should keep opening connections as it does by default
+     */
+    static OkHttpConnectionFactory create(final GraphDnsCache dnsCache) {
+        try {
+            Class<?> clientClass = Class.forName(CLIENT_CLASS);
+            Class<?> dnsClass = Class.forName(DNS_CLASS);
+            Method setDns = clientClass.getMethod("setDns", dnsClass);
+            Method open = clientClass.getMethod("open", URL.class);
+
+            Object dns = Proxy.newProxyInstance(dnsClass.getClassLoader(), new Class<?>[] { dnsClass },
+                    new InvocationHandler() {
+                        @Override
+                        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                            if (method.getName().equals("getAllByName")) {
+                                return dnsCache.getAllByName((String) args[0]);
+                            } else if (method.getName().equals("equals")) {
+                                return proxy == args[0];
+                            } else if (method.getName().equals("hashCode")) {
+                                return System.identityHashCode(proxy);
+                            }
+                            return "GraphDnsCache";
+                        }
+                    });
+            Object client = clientClass.getDeclaredConstructor().newInstance();
+            setDns.invoke(client, dns);
+            return new OkHttpConnectionFactory(client, open);
+        } catch (Exception e) {
+            Log.d(TAG, "OkHttp with a pluggable Dns is not available, using the default connections: " + e);
+            return null;
+        }
+    }
+
+    @Override
+    public HttpURLConnection openConnection(URL url) throws IOException {
+        try {
+            return (HttpURLConnection) open.invoke(client, url);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause.toString());
+        } catch (IllegalAccessException e) {
+            throw new IOException(e.toString());
+        }
+    }
+}